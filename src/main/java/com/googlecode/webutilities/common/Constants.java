@@ -17,10 +17,7 @@
 package com.googlecode.webutilities.common;
 
 
-import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.TimeZone;
 import java.util.regex.Pattern;
 
@@ -89,6 +86,16 @@ public final class Constants {
 
     public static final String HTTP_IF_MODIFIED_SINCE = "If-Modified-Since";
 
+    public static final String HTTP_ACCEPT_RANGES_HEADER = "Accept-Ranges";
+
+    public static final String HTTP_RANGE_HEADER = "Range";
+
+    public static final String HTTP_IF_RANGE_HEADER = "If-Range";
+
+    public static final String HTTP_CONTENT_RANGE_HEADER = "Content-Range";
+
+    public static final String RANGE_UNIT_BYTES = "bytes";
+
     public static final String CONTENT_ENCODING_GZIP = "gzip";
 
     public static final String CONTENT_ENCODING_COMPRESS = "compress";
@@ -97,6 +104,8 @@ public final class Constants {
 
     public static final String CONTENT_ENCODING_IDENTITY = "identity";
 
+    public static final String CONTENT_ENCODING_BROTLI = "br";
+
     public static final String HTTP_USER_AGENT_HEADER = "User-Agent";
 
     //HTTP dates are in one of these format
@@ -122,9 +131,6 @@ public final class Constants {
 
     public static final Pattern CSS_IMG_URL_PATTERN = Pattern.compile("[uU][rR][lL]\\s*\\(\\s*['\"]?([^('|\")]*)['\"]?\\s*\\)");
 
-    //Map that holds Image path -> CSS files path that refers it
-    public static final Map<String, List<String>> CSS_IMG_REFERENCES = new HashMap<String, List<String>>();
-
     private Constants() {
     } //non instantiable
 
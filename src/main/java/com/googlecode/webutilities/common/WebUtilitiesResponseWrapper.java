@@ -195,6 +195,10 @@ public class WebUtilitiesResponseWrapper extends HttpServletResponseWrapper {
         if (stream != null) {
             stream.reset();
         }
+        // status and headers too, as the spec says, for those filling the wrapper into a response later
+        status = 0;
+        headers.clear();
+        cookies.clear();
         //getResponse().reset();
 
     }
@@ -216,6 +220,14 @@ public class WebUtilitiesResponseWrapper extends HttpServletResponseWrapper {
         return stream.getByteArrayOutputStream().toByteArray();
     }
 
+    /**
+     * @return number of bytes written so far, without copying them
+     */
+    public int getSize() {
+        this.flushWriter();
+        return stream.getByteArrayOutputStream().size();
+    }
+
     public WebUtilitiesResponseWrapper(HttpServletResponse response) {
         super(response);
         stream = new WebUtilitiesResponseOutputStream(this);
@@ -241,7 +253,7 @@ public class WebUtilitiesResponseWrapper extends HttpServletResponseWrapper {
         response.setStatus(this.getStatus());
         this.flushWriter();
         try {
-            response.getOutputStream().write(this.getBytes());
+            stream.getByteArrayOutputStream().writeTo(response.getOutputStream());
             response.getOutputStream().close();
         } catch (RuntimeException ex) {
             try{
@@ -33,6 +33,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.googlecode.webutilities.common.Constants;
 import com.googlecode.webutilities.filters.common.AbstractFilter;
+import com.googlecode.webutilities.util.MimeRegistry;
 
 
 /**
@@ -141,12 +142,13 @@ public class CharacterEncodingFilter extends AbstractFilter {
         }
         String extensionOrFile = detectExtension(url);
         if (extensionOrFile == null) {
-            List<String> resources = findResourcesToMerge(req.getContextPath(), url);
+            List<String> resources = findResourcesToMerge(req.getContextPath(), url, filterConfig.getServletContext());
             extensionOrFile = resources.get(0);
         }
-        String mime = selectMimeForExtension(extensionOrFile);
+        String mime = selectMimeForExtension(extensionOrFile, filterConfig.getServletContext());
         LOGGER.trace("Predicted output mime : {} for URL: {} ", new Object[]{mime, url});
-        if (encoding != null && force && this.isMIMEAccepted(mime)) {
+        MimeRegistry.MimeType mimeType = MimeRegistry.getInstance(filterConfig.getServletContext()).lookup(extensionOrFile);
+        if (encoding != null && force && this.isMIMEAccepted(mime) && (mimeType == null || mimeType.isCharsetApplicable())) { //not for known binary types
             try {
                 resp.setCharacterEncoding(encoding);
                 LOGGER.debug("Applied response encoding : {}", encoding);
@@ -41,6 +41,7 @@ import com.googlecode.webutilities.filters.common.AbstractFilter;
 import com.googlecode.webutilities.filters.compression.CompressedHttpServletRequestWrapper;
 import com.googlecode.webutilities.filters.compression.CompressedHttpServletResponseWrapper;
 import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
+import com.googlecode.webutilities.util.MimeRegistry;
 
 
 /**
@@ -48,6 +49,9 @@ import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
  * and also respond with compressed contents supporting gzip, compress or
  * deflate compression encoding.
  * <p/>
+ * A response already encoded further down the chain, like a precompressed <code>.br</code>/<code>.gz</code> sibling
+ * sent by JSCSSMergeServlet with <code>usePrecompressed</code>, is passed on as is.
+ * <p/>
  * Visit http://code.google.com/p/webutilities/wiki/CompressionFilter for more details.
  *
  * @author rpatil
@@ -225,7 +229,8 @@ public class CompressionFilter extends AbstractFilter {
 
         LOGGER.debug("Compressing response: content encoding : {}", contentEncoding);
 
-        return new CompressedHttpServletResponseWrapper(httpResponse, encodedStreamsFactory, contentEncoding, compressionThreshold, this);
+        return new CompressedHttpServletResponseWrapper(httpResponse, encodedStreamsFactory, contentEncoding, compressionThreshold, this,
+            MimeRegistry.getInstance(filterConfig.getServletContext()));
     }
 
 }
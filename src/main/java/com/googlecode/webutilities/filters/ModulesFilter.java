@@ -117,7 +117,7 @@ public class ModulesFilter extends AbstractFilter {
         String url = getURL(httpRequest);
         String responseMime = httpResponse.getContentType();
         if (requestMime == null) {
-            responseMime = Utils.selectMimeByFile(url);
+            responseMime = Utils.selectMimeByFile(url, filterConfig.getServletContext());
         }
         List<IModule> eligibleModule = null;
         for (RuleMapping ruleMapping : config.ruleMappings) {
@@ -18,17 +18,32 @@ package com.googlecode.webutilities.filters;
 
 import static com.googlecode.webutilities.common.Constants.HTTP_IF_MODIFIED_SINCE;
 import static com.googlecode.webutilities.common.Constants.HTTP_IF_NONE_MATCH_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_IF_RANGE_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_RANGE_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_VARY_HEADER;
 import static com.googlecode.webutilities.util.Utils.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
@@ -37,11 +52,25 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import com.googlecode.webutilities.common.Constants;
 import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
+import com.googlecode.webutilities.filters.cache.CacheKey;
+import com.googlecode.webutilities.filters.cache.CachedResponse;
+import com.googlecode.webutilities.filters.cache.DiskStore;
+import com.googlecode.webutilities.filters.cache.ResponseCache;
+import com.googlecode.webutilities.filters.cache.ResponseCacheMBean;
+import com.googlecode.webutilities.filters.cache.SingleFlight;
+import com.googlecode.webutilities.filters.cache.SlabStore;
+import com.googlecode.webutilities.filters.cache.StripedCounter;
 import com.googlecode.webutilities.filters.common.AbstractFilter;
+import com.googlecode.webutilities.util.HttpDateCodec;
+import com.googlecode.webutilities.util.ResourceChangeListener;
+import com.googlecode.webutilities.util.ResourceMetadata;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
 
 
 /**
@@ -50,6 +79,21 @@ import com.googlecode.webutilities.filters.common.AbstractFilter;
  * This enables the server side caching of the static resources, where client caching is done using JSCSSMergeServlet by setting
  * appropriate expires/Cache-Control headers.
  * </p>
+ * <p>
+ * Responses are cached by URI and query (parameters in any order), and by variant: the encodings accepted by the
+ * request and the request headers named in <code>Vary</code> of the response. Mapped ahead of CompressionFilter, the
+ * compressed and identity responses are thus cached separately, each compressed once. Only whole (<code>200</code>)
+ * responses are cached; requests with a <code>Range</code> header pass the cache by.
+ * </p>
+ * <p>
+ * When the resource metadata registry polls resources (see <code>resourcePollInterval</code>), a cached response is
+ * known valid until it reports a change of any resource, and conditional requests for it are answered
+ * <code>304</code> from its ETag and last modified time alone, without looking at the resources.
+ * </p>
+ * <p>
+ * Every instance registers a {@link ResponseCacheMBean} with the platform MBean server, exposing hits, misses, size,
+ * evictions and load times of the cache, and operations to invalidate a URL, a prefix or the whole cache.
+ * </p>
  * <h3>Usage</h3>
  * <p>
  * Put the <b>webutilities-x.y.z.jar</b> in your classpath (WEB-INF/lib folder of your webapp).
@@ -62,6 +106,55 @@ import com.googlecode.webutilities.filters.common.AbstractFilter;
  * &lt;filter&gt;
  * 	&lt;filter-name&gt;responseCacheFilter&lt;/filter-name&gt;</b>
  * 	&lt;filter-class&gt;<b>com.googlecode.webutilities.filters.ResponseCacheFilter</b>&lt;/filter-class&gt;
+ * 	&lt;!-- optional, bounds of the cache, least recently used responses are evicted beyond --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;maxEntries&lt;/param-name&gt;
+ * 		&lt;param-value&gt;1024&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;maxBytes&lt;/param-name&gt;
+ * 		&lt;param-value&gt;67108864&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;!-- optional, milliseconds concurrent requests for a response being loaded wait for it, before loading on their own --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;loadTimeout&lt;/param-name&gt;
+ * 		&lt;param-value&gt;5000&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;!-- optional, keep cached bodies off the java heap, in direct memory slabs of slabSize bytes, default heap --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;storage&lt;/param-name&gt;
+ * 		&lt;param-value&gt;direct&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;slabSize&lt;/param-name&gt;
+ * 		&lt;param-value&gt;1048576&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;!-- optional, responses evicted from memory are kept in files of this directory (relative to the container's temp
+ * 	directory, unless absolute) up to diskMaxBytes, and served again after a restart once validated against resources --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;diskDir&lt;/param-name&gt;
+ * 		&lt;param-value&gt;webutilities-responses&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;diskMaxBytes&lt;/param-name&gt;
+ * 		&lt;param-value&gt;268435456&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;!-- optional, seconds a cached response is served before it is reloaded --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;reloadTime&lt;/param-name&gt;
+ * 		&lt;param-value&gt;300&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;!-- optional, seconds past reloadTime the cached response is still served, reloading it once the response is
+ * 	complete, by at most maxRevalidations (default 2) requests at once --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;staleWhileRevalidate&lt;/param-name&gt;
+ * 		&lt;param-value&gt;60&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;!-- optional, seconds past reloadTime the cached response is served in place of a failed reload --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;staleIfError&lt;/param-name&gt;
+ * 		&lt;param-value&gt;3600&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
  * &lt;/filter&gt;
  * ...
  * </pre>
@@ -88,44 +181,52 @@ import com.googlecode.webutilities.filters.common.AbstractFilter;
 
 public class ResponseCacheFilter extends AbstractFilter {
 
-    private class CacheObject{
+    private ResponseCache<CachedResponse> cache;
 
-        private long time;
+    private SlabStore slabs;
 
-        //private long accessCount = 0;
+    private volatile DiskStore disk;
 
-        private WebUtilitiesResponseWrapper webUtilitiesResponseWrapper;
+    private final SingleFlight<CachedResponse> flights = new SingleFlight<CachedResponse>();
 
-        CacheObject(long time, WebUtilitiesResponseWrapper webUtilitiesResponseWrapper){
-            this.time = time;
-            this.webUtilitiesResponseWrapper = webUtilitiesResponseWrapper;
-        }
+    private final ConcurrentMap<String, String[]> varyHeaders = new ConcurrentHashMap<String, String[]>();
 
-        public long getTime() {
-            return time;
-        }
+    private int reloadTime = 0;
 
-        public WebUtilitiesResponseWrapper getWebUtilitiesResponseWrapper() {
-            return webUtilitiesResponseWrapper;
-        }
+    private int resetTime = 0;
 
-        /*public void increaseAccessCount(){
-            accessCount++;
-        }
+    private long loadTimeout = DEFAULT_LOAD_TIMEOUT;
 
-        public long getAccessCount(){
-            return this.accessCount;
-        }*/
+    private int staleWhileRevalidate = 0;
 
-    }
+    private int staleIfError = 0;
 
-    private Map<String, CacheObject> cache = Collections.synchronizedMap(new LinkedHashMap<String, CacheObject>());
+    private Semaphore revalidations = new Semaphore(DEFAULT_MAX_REVALIDATIONS);
 
-    private int reloadTime = 0;
+    private volatile long lastResetTime;
 
-    private int resetTime = 0;
+    private final StripedCounter hits = new StripedCounter();
 
-    private long lastResetTime;
+    private final StripedCounter misses = new StripedCounter();
+
+    private final StripedCounter loads = new StripedCounter();
+
+    private final StripedCounter loadNanos = new StripedCounter();
+
+    private ObjectName mbeanName;
+
+    private ResourceMetadataRegistry registry;
+
+    /**
+     * Count of resource changes, cached responses found valid at the current count are still valid
+     */
+    private final AtomicLong resourceEpoch = new AtomicLong();
+
+    private final ResourceChangeListener resourceChangeListener = new ResourceChangeListener() {
+        public void resourceChanged(String relativePath, ResourceMetadata metadata) {
+            resourceEpoch.incrementAndGet();
+        }
+    };
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCacheFilter.class.getName());
 
@@ -133,6 +234,38 @@ public class ResponseCacheFilter extends AbstractFilter {
 
     private static final String INIT_PARAM_RESET_TIME = "resetTime";
 
+    private static final String INIT_PARAM_MAX_ENTRIES = "maxEntries";
+
+    private static final String INIT_PARAM_MAX_BYTES = "maxBytes";
+
+    private static final String INIT_PARAM_LOAD_TIMEOUT = "loadTimeout";
+
+    private static final String INIT_PARAM_STORAGE = "storage";
+
+    private static final String INIT_PARAM_SLAB_SIZE = "slabSize";
+
+    private static final String STORAGE_DIRECT = "direct";
+
+    private static final String INIT_PARAM_DISK_DIR = "diskDir";
+
+    private static final String INIT_PARAM_DISK_MAX_BYTES = "diskMaxBytes";
+
+    private static final String CONTEXT_TEMP_DIR_ATTR = "javax.servlet.context.tempdir";
+
+    private static final String INIT_PARAM_STALE_WHILE_REVALIDATE = "staleWhileRevalidate";
+
+    private static final String INIT_PARAM_STALE_IF_ERROR = "staleIfError";
+
+    private static final String INIT_PARAM_MAX_REVALIDATIONS = "maxRevalidations";
+
+    private static final long DEFAULT_LOAD_TIMEOUT = 5000;
+
+    private static final int DEFAULT_MAX_REVALIDATIONS = 2;
+
+    private static final int MAX_VARY_HEADERS = 4096;
+
+    private static final String MBEAN_DOMAIN = "com.googlecode.webutilities";
+
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
@@ -142,14 +275,104 @@ public class ResponseCacheFilter extends AbstractFilter {
 
         this.resetTime = readInt(filterConfig.getInitParameter(INIT_PARAM_RESET_TIME),resetTime);
 
+        int maxEntries = readInt(filterConfig.getInitParameter(INIT_PARAM_MAX_ENTRIES), ResponseCache.DEFAULT_MAX_ENTRIES);
+
+        long maxBytes = readLong(filterConfig.getInitParameter(INIT_PARAM_MAX_BYTES), ResponseCache.DEFAULT_MAX_BYTES);
+
+        this.loadTimeout = readLong(filterConfig.getInitParameter(INIT_PARAM_LOAD_TIMEOUT), DEFAULT_LOAD_TIMEOUT);
+
+        this.staleWhileRevalidate = readInt(filterConfig.getInitParameter(INIT_PARAM_STALE_WHILE_REVALIDATE), 0);
+
+        this.staleIfError = readInt(filterConfig.getInitParameter(INIT_PARAM_STALE_IF_ERROR), 0);
+
+        this.revalidations = new Semaphore(Math.max(1, readInt(filterConfig.getInitParameter(INIT_PARAM_MAX_REVALIDATIONS), DEFAULT_MAX_REVALIDATIONS)));
+
+        String storage = filterConfig.getInitParameter(INIT_PARAM_STORAGE);
+
+        int slabSize = readInt(filterConfig.getInitParameter(INIT_PARAM_SLAB_SIZE), SlabStore.DEFAULT_SLAB_SIZE);
+
+        String diskDir = filterConfig.getInitParameter(INIT_PARAM_DISK_DIR);
+
+        long diskMaxBytes = readLong(filterConfig.getInitParameter(INIT_PARAM_DISK_MAX_BYTES), DiskStore.DEFAULT_MAX_BYTES);
+
+        if (this.cache == null) { //kept if initialized again
+            this.cache = new ResponseCache<CachedResponse>(maxEntries, maxBytes);
+            if (STORAGE_DIRECT.equalsIgnoreCase(storage)) {
+                this.slabs = new SlabStore(slabSize, maxBytes > 0 ? maxBytes + slabSize : 0);
+            }
+            this.cache.setRemovalListener(new ResponseCache.RemovalListener<CachedResponse>() {
+                public void removed(String key, CachedResponse value, boolean evicted) {
+                    DiskStore store = disk;
+                    if (store != null) {
+                        if (!evicted) {
+                            store.remove(key);
+                        } else if (store.put(key, value)) {
+                            LOGGER.trace("Evicted {}, to be written to disk", key);
+                        }
+                    }
+                    if (value.getBody() instanceof SlabStore.Block) {
+                        slabs.free((SlabStore.Block) value.getBody());
+                    }
+                }
+            });
+        }
+
+        if (this.disk == null && diskDir != null) {
+            File directory = new File(diskDir);
+            if (!directory.isAbsolute()) {
+                Object tempDir = filterConfig.getServletContext().getAttribute(CONTEXT_TEMP_DIR_ATTR);
+                directory = new File(tempDir instanceof File ? (File) tempDir : new File(System.getProperty("java.io.tmpdir")), diskDir);
+            }
+            try {
+                this.disk = new DiskStore(directory, diskMaxBytes);
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to open disk store in {}, caching in memory only", directory, ex);
+            }
+        }
+
         lastResetTime = new Date().getTime();
 
-        LOGGER.debug("Cache Filter initialized with: {}:{},\n{}:{}",
+        if (this.mbeanName == null) {
+            registerMBean(filterConfig);
+        }
+
+        this.registry = ResourceMetadataRegistry.getInstance(filterConfig.getServletContext());
+        this.registry.addListener(resourceChangeListener);
+
+        LOGGER.debug("Cache Filter initialized with: {}:{},\n{}:{},\n{}:{},\n{}:{},\n{}:{},\n{}:{},\n{}:{},\n{}:{},\n{}:{}",
                 new Object[]{INIT_PARAM_RELOAD_TIME, String.valueOf(reloadTime),
-                INIT_PARAM_RESET_TIME ,String.valueOf(resetTime)});
+                INIT_PARAM_RESET_TIME ,String.valueOf(resetTime),
+                INIT_PARAM_MAX_ENTRIES, String.valueOf(maxEntries),
+                INIT_PARAM_MAX_BYTES, String.valueOf(maxBytes),
+                INIT_PARAM_LOAD_TIMEOUT, String.valueOf(loadTimeout),
+                INIT_PARAM_STORAGE, slabs != null ? STORAGE_DIRECT : "heap",
+                INIT_PARAM_DISK_DIR, diskDir,
+                INIT_PARAM_STALE_WHILE_REVALIDATE, String.valueOf(staleWhileRevalidate),
+                INIT_PARAM_STALE_IF_ERROR, String.valueOf(staleIfError)});
 
     }
 
+    @Override
+    public void destroy() {
+        if (this.registry != null) {
+            this.registry.removeListener(resourceChangeListener);
+        }
+        if (this.mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+            } catch (Exception ex) {
+                LOGGER.debug("Unable to unregister {}", this.mbeanName, ex);
+            }
+            this.mbeanName = null;
+        }
+        DiskStore store = this.disk;
+        this.disk = null;
+        if (store != null) {
+            store.close();
+        }
+        super.destroy();
+    }
+
     @Override
     public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) throws IOException, ServletException {
 
@@ -168,25 +391,55 @@ public class ResponseCacheFilter extends AbstractFilter {
 
         long now = new Date().getTime();
 
-        CacheObject cacheObject = cache.get(url);
+        String primaryKey = CacheKey.primary(url, httpServletRequest.getQueryString());
 
-        boolean expireCache = httpServletRequest.getParameter(Constants.PARAM_EXPIRE_CACHE) != null ||
-                (cacheObject != null &&  reloadTime > 0 && (now - cacheObject.getTime())/1000 > reloadTime);
+        String key = CacheKey.variant(primaryKey, httpServletRequest, varyHeaders.get(primaryKey));
 
-        if(expireCache){
-            LOGGER.trace("Removing Cache for {}  due to URL parameter.", url);
-            cache.remove(url);
+        CachedResponse cachedResponse = cache.get(key);
+
+        DiskStore store = disk;
+        if(cachedResponse == null && store != null){
+            cachedResponse = store.get(key);
+            if(cachedResponse != null){
+                LOGGER.trace("Loading cache for {} from disk.", key);
+                cache.put(key, cachedResponse, cachedResponse.getSize());
+            }
         }
 
-        boolean resetCache = httpServletRequest.getParameter(Constants.PARAM_RESET_CACHE) != null ||
-                resetTime > 0 && (now - lastResetTime)/1000 > resetTime;
+        boolean expireCache = httpServletRequest.getParameter(Constants.PARAM_EXPIRE_CACHE) != null;
+
+        CachedResponse staleObject = null;
+
+        boolean revalidate = false;
 
-        if(resetCache){
-            LOGGER.trace("Resetting whole Cache for {} due to URL parameter.", url);
-            cache.clear();
-            lastResetTime = now;
+        long expiredFor = cachedResponse != null && reloadTime > 0 ? (now - cachedResponse.getCachedAt())/1000 - reloadTime : -1;
+
+        if(expireCache){
+            LOGGER.trace("Removing Cache for {}  due to URL parameter.", primaryKey);
+            removeByPrefix(primaryKey + CacheKey.VARIANT_SEPARATOR);
+            cachedResponse = null;
+        }else if(expiredFor > 0 && expiredFor <= staleWhileRevalidate){
+            LOGGER.trace("Serving stale Cache for {} while reloading it.", key);
+            revalidate = true;
+        }else if(expiredFor > 0 && expiredFor <= staleIfError){
+            LOGGER.trace("Reloading Cache for {} due to reload time, served again if the reload fails.", key);
+            staleObject = cachedResponse; //stays cached until the reload replaces it
+            cachedResponse = null;
+        }else if(expiredFor > 0){
+            LOGGER.trace("Reloading Cache for {} due to reload time.", key);
+            cache.remove(key);
+            staleObject = cachedResponse;
+            cachedResponse = null;
         }
 
+        CachedResponse staleIfErrorObject = staleObject != null && expiredFor <= staleIfError ? staleObject : null;
+
+        boolean resetCache = httpServletRequest.getParameter(Constants.PARAM_RESET_CACHE) != null;
+
+        if(resetCache || resetTime > 0 && (now - lastResetTime)/1000 > resetTime){
+            LOGGER.trace("Resetting whole Cache for {}.", url);
+            reset(now);
+        }
         boolean skipCache = httpServletRequest.getParameter(Constants.PARAM_DEBUG) != null || httpServletRequest.getParameter(Constants.PARAM_SKIP_CACHE) != null;
 
         if(skipCache){
@@ -194,71 +447,536 @@ public class ResponseCacheFilter extends AbstractFilter {
             LOGGER.trace("Skipping Cache for {} due to URL parameter.", url);
             return;
         }
+
+        if(httpServletRequest.getHeader(HTTP_RANGE_HEADER) != null){
+            //partial responses are neither cached nor cut out of cached ones, the servlet answers ranges
+            LOGGER.trace("Skipping Cache for {} due to Range header.", url);
+            filterChain.doFilter(servletRequest, servletResponse);
+            return;
+        }
         
-        List<String> requestedResources = findResourcesToMerge(httpServletRequest.getContextPath(), url);
+        List<String> requestedResources = findResourcesToMerge(httpServletRequest.getContextPath(), url, filterConfig.getServletContext());
         ServletContext context = filterConfig.getServletContext();
-        //If-Modified-Since
-        String ifModifiedSince = httpServletRequest.getHeader(HTTP_IF_MODIFIED_SINCE);
-        if(ifModifiedSince != null){
-            Date date = readDateFromHeader(ifModifiedSince);
-            if(date != null){
-                if(!isAnyResourceModifiedSince(requestedResources, date.getTime(), context)){
-                    //cache.remove(url);
+        long epoch = resourceEpoch.get();
+        boolean validated = cachedResponse != null && cachedResponse.isValidAt(epoch);
+        if(validated){
+            //no resource changed since it was found valid, its validators stand for theirs
+            if(isNotModified(httpServletRequest, cachedResponse)){
+                hits.increment();
+                this.sendNotModified(httpServletResponse);
+                if(revalidate){
+                    httpServletResponse.flushBuffer(); //committed, the client is done before the reload starts
+                    revalidate(primaryKey, key, httpServletRequest, httpServletResponse, filterChain, requestedResources);
+                }
+                return;
+            }
+        }else{
+            //If-Modified-Since
+            long ifModifiedSince = HttpDateCodec.parse(httpServletRequest.getHeader(HTTP_IF_MODIFIED_SINCE));
+            if(ifModifiedSince != HttpDateCodec.INVALID){
+                if(!isAnyResourceModifiedSinceHttpDate(requestedResources, ifModifiedSince, context)){
+                    //cache.remove(key);
                     this.sendNotModified(httpServletResponse);
                     return;
                 }
             }
-        }
-        //If-None-match
-        String requestETag = httpServletRequest.getHeader(HTTP_IF_NONE_MATCH_HEADER);
-        if(!isAnyResourceETagModified(requestedResources, requestETag, null, context)){
-            cache.remove(url);
-        	this.sendNotModified(httpServletResponse);
-    		return;
+            //If-None-match
+            String requestETag = httpServletRequest.getHeader(HTTP_IF_NONE_MATCH_HEADER);
+            if(!isAnyResourceETagModified(requestedResources, requestETag, null, context)){
+                cache.remove(key);
+                this.sendNotModified(httpServletResponse);
+                return;
+            }
         }
 
-        boolean cacheFound = false;
+        boolean cacheFound = validated;
 
-        if(cacheObject != null && cacheObject.getWebUtilitiesResponseWrapper() != null){
-            if(requestedResources != null && isAnyResourceModifiedSince(requestedResources, cacheObject.getTime(), context)){
-                LOGGER.trace("Some resources have been modified since last cache: {}" , url);
-                cache.remove(url);
+        if(cachedResponse != null && !validated){
+            if(requestedResources != null && isAnyResourceModifiedSince(requestedResources, cachedResponse.getLastModified(), context)){
+                LOGGER.trace("Some resources have been modified since last cache: {}" , key);
+                cache.remove(key);
                 cacheFound = false;
             }else{
                 LOGGER.trace("Found valid cached response.");
-                //cacheObject.increaseAccessCount();
+                if(isChangeNotified(requestedResources)){
+                    cachedResponse.setValidEpoch(epoch);
+                }
                 cacheFound = true;
             }
         }
 
         if(cacheFound){
             LOGGER.debug("Returning Cached response.");
-            cacheObject.getWebUtilitiesResponseWrapper().fill(httpServletResponse);
-            //fillResponseFromCache(httpServletResponse, cacheObject.getModuleResponse());
+            hits.increment();
+            cachedResponse.fill(httpServletResponse);
+            //fillResponseFromCache(httpServletResponse, cachedResponse.getModuleResponse());
+            if(revalidate){
+                revalidate(primaryKey, key, httpServletRequest, httpServletResponse, filterChain, requestedResources);
+            }
         }else{
             LOGGER.trace("Cache not found or invalidated");
+            misses.increment();
+            boolean cacheable = !expireCache && !resetCache;
+            SingleFlight.Flight<CachedResponse> flight = cacheable ? flights.join(key) : null;
+            if(flight != null && !flight.isLeader()){
+                CachedResponse loaded = awaitFlight(flight);
+                if(loaded == null && staleObject != null){
+                    LOGGER.debug("Returning stale response, reload of {} did not complete in time.", key);
+                    loaded = staleObject;
+                }
+                if(loaded != null){
+                    LOGGER.debug("Returning response loaded by concurrent request.");
+                    loaded.fill(httpServletResponse);
+                    return;
+                }
+                flight = null; //leader failed or timed out, load on our own
+            }
+            CachedResponse loaded = null;
             WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(httpServletResponse);
+            try{
+                if(!loadInto(wrapper, servletRequest, filterChain, key, staleIfErrorObject != null)){
+                    LOGGER.debug("Returning stale response, reload of {} failed.", key);
+                    loaded = staleIfErrorObject; //still cached, served until staleIfError is over
+                }else if(isMIMEAccepted(wrapper.getContentType()) && cacheable && isComplete(wrapper)){
+                    loaded = cache(primaryKey, httpServletRequest, wrapper, requestedResources, epoch);
+                }else{
+                    LOGGER.trace("Cache NOT added for: {}", key);
+                    LOGGER.trace("is MIME not accepted: {}", isMIMEAccepted(wrapper.getContentType()));
+                    LOGGER.trace("is status not 200: {}", wrapper.getStatus());
+                    LOGGER.trace("is expireCache: {}", expireCache);
+                    LOGGER.trace("is resetCache: {}", resetCache);
+                }
+            }finally{
+                if(flight != null){
+                    flights.land(key, flight, loaded);
+                }
+            }
+            if (loaded != null) {
+                loaded.fill(httpServletResponse);
+            } else {
+                wrapper.fill(httpServletResponse);
+            }
+        }
+
+    }
+
+    /**
+     * Runs the chain into the wrapper.
+     *
+     * @param failSafe - true to report failure, an exception or a server error, rather than throw or keep it
+     * @return false if it failed
+     */
+    private boolean loadInto(WebUtilitiesResponseWrapper wrapper, ServletRequest servletRequest, FilterChain filterChain,
+                             String url, boolean failSafe) throws IOException, ServletException {
+        long start = System.nanoTime();
+        try{
             filterChain.doFilter(servletRequest, wrapper);
+        }catch (IOException ex){
+            if(!failSafe) throw ex;
+            LOGGER.warn("Failed to load {}", url, ex);
+            return false;
+        }catch (ServletException ex){
+            if(!failSafe) throw ex;
+            LOGGER.warn("Failed to load {}", url, ex);
+            return false;
+        }catch (RuntimeException ex){
+            if(!failSafe) throw ex;
+            LOGGER.warn("Failed to load {}", url, ex);
+            return false;
+        }finally{
+            loads.increment();
+            loadNanos.add(System.nanoTime() - start);
+        }
+        return !failSafe || wrapper.getStatus() < HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
 
-            if(isMIMEAccepted(wrapper.getContentType()) && !expireCache && !resetCache && wrapper.getStatus() != HttpServletResponse.SC_NOT_MODIFIED){
-            	cache.put(url, new CacheObject(getLastModifiedFor(requestedResources, context), wrapper));
-	            LOGGER.debug("Cache added for: {}", url);
-            }else{
-                LOGGER.trace("Cache NOT added for: {}", url);
-                LOGGER.trace("is MIME not accepted: {}", isMIMEAccepted(wrapper.getContentType()));
-                LOGGER.trace("is expireCache: {}", expireCache);
-                LOGGER.trace("is resetCache: {}", resetCache);
+    /**
+     * Caches the response loaded into the wrapper as the variant for the request, its body kept in slabs if so
+     * configured. Request headers named in <code>Vary</code> of the response are remembered for the primary key, to
+     * pick the variant of the later requests.
+     *
+     * @param epoch - count of resource changes before the response was loaded, it is valid at
+     * @return cached response, also to be given to those waiting for it even if it was too big to be cached, null if the
+     *         response varies on anything
+     */
+    private CachedResponse cache(String primaryKey, HttpServletRequest request, WebUtilitiesResponseWrapper wrapper, List<String> requestedResources, long epoch){
+        String[] vary = CacheKey.parseVary(getHeader(wrapper, HTTP_VARY_HEADER));
+        if (vary == null) {
+            LOGGER.trace("Cache NOT added for: {}, varies on any header", primaryKey);
+            return null;
+        }
+        String[] known = varyHeaders.get(primaryKey);
+        vary = CacheKey.merge(known, vary);
+        if (vary != known && vary.length > 0) {
+            if (varyHeaders.size() >= MAX_VARY_HEADERS) {
+                Iterator<String> iterator = varyHeaders.keySet().iterator();
+                if (iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            varyHeaders.put(primaryKey, vary);
+            removeByPrefix(primaryKey + CacheKey.VARIANT_SEPARATOR); //keyed without the headers now known, no longer looked up
+        }
+        String url = CacheKey.variant(primaryKey, request, vary.length > 0 ? vary : null);
+        SlabStore.Block body = slabs != null ? slabs.store(wrapper.getBytes()) : null;
+        CachedResponse cachedResponse = CachedResponse.of(wrapper, getLastModifiedFor(requestedResources, filterConfig.getServletContext()), body);
+        if (isChangeNotified(requestedResources)) {
+            cachedResponse.setValidEpoch(epoch);
+        }
+        if (cache.put(url, cachedResponse, cachedResponse.getSize())) {
+            LOGGER.debug("Cache added for: {}", url);
+            LOGGER.trace("Cache holds {} responses, {} bytes, {} evicted so far", new Object[]{cache.size(), cache.getWeight(), cache.getEvictionCount()});
+        } else if (body != null) {
+            slabs.free(body); //still readable for this and waiting requests
+        }
+        return cachedResponse;
+    }
+
+    /**
+     * Reloads the stale response already sent, replacing the cached one unless it fails. Servlet 2.5 has no
+     * asynchronous processing and the container's request, response and chain can not be used once the request is
+     * over, so the reload runs on the request thread after the response is committed. It runs without the conditional
+     * and range headers of the request, not to be answered with 304 or 206, into a response detached from the one sent. At most
+     * <code>maxRevalidations</code> run at once, and one at a time for a URL.
+     */
+    private void revalidate(String primaryKey, String url, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+                            FilterChain filterChain, List<String> requestedResources){
+        if(!revalidations.tryAcquire()){
+            LOGGER.trace("Too many reloads in progress, not reloading {}", url);
+            return;
+        }
+        long epoch = resourceEpoch.get();
+        SingleFlight.Flight<CachedResponse> flight = flights.join(url);
+        CachedResponse loaded = null;
+        try{
+            if(!flight.isLeader()){
+                return;
+            }
+            WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(new DetachedResponse(httpServletResponse));
+            if(!loadInto(wrapper, new UnconditionalRequest(httpServletRequest), filterChain, url, true)){
+                LOGGER.debug("Reload of {} failed, keeping stale response.", url);
+            }else if(isMIMEAccepted(wrapper.getContentType()) && isComplete(wrapper)){
+                loaded = cache(primaryKey, httpServletRequest, wrapper, requestedResources, epoch);
+            }
+        }catch (Exception ex){
+            LOGGER.debug("Reload of {} failed, keeping stale response.", url, ex);
+        }finally{
+            if(flight.isLeader()){
+                flights.land(url, flight, loaded);
             }
-            wrapper.fill(httpServletResponse);
+            revalidations.release();
         }
+    }
 
+    /**
+     * @return number of responses removed from memory
+     */
+    private int removeByPrefix(String prefix){
+        DiskStore store = disk;
+        if(store != null){
+            store.removeByPrefix(prefix);
+        }
+        return cache.removeByPrefix(prefix);
     }
-    
+
+    private void reset(long now){
+        cache.clear();
+        DiskStore store = disk;
+        if(store != null){
+            store.clear();
+        }
+        lastResetTime = now;
+    }
+
+    /**
+     * Registers the management interface of this cache, named by the display name of the application and the name of
+     * the filter, set apart by its identity if taken already.
+     */
+    private void registerMBean(FilterConfig filterConfig){
+        String context = filterConfig.getServletContext().getServletContextName();
+        String name = filterConfig.getFilterName();
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=" + ResponseCacheFilter.class.getSimpleName()
+                + ",context=" + ObjectName.quote(context != null ? context : "/")
+                + ",name=" + ObjectName.quote(name != null ? name : ResponseCacheFilter.class.getSimpleName()));
+            if(server.isRegistered(objectName)){
+                objectName = new ObjectName(objectName + ",instance=" + System.identityHashCode(this));
+            }
+            server.registerMBean(new StandardMBean(new Management(), ResponseCacheMBean.class), objectName);
+            this.mbeanName = objectName;
+        }catch (Exception ex){
+            LOGGER.warn("Unable to register cache MBean, statistics not exposed", ex);
+        }
+    }
+
+    /**
+     * @return true if changes of all the resources are notified, not if any of them is missing as its creation is not
+     */
+    private boolean isChangeNotified(List<String> resources){
+        if(!registry.isChangeNotified()) return false;
+        for(String resource : resources){
+            if(registry.get(resource) == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Answers a conditional request from validators of a valid cached response, as its resources would: if they are
+     * not modified since <code>If-Modified-Since</code>, or its ETag is in <code>If-None-Match</code>.
+     */
+    private static boolean isNotModified(HttpServletRequest request, CachedResponse cachedResponse){
+        long ifModifiedSince = HttpDateCodec.parse(request.getHeader(HTTP_IF_MODIFIED_SINCE));
+        if(ifModifiedSince != HttpDateCodec.INVALID && cachedResponse.getLastModified() <= ifModifiedSince - ifModifiedSince % 1000 + 999){
+            return true; //HTTP dates have no milliseconds
+        }
+        String requestETag = request.getHeader(HTTP_IF_NONE_MATCH_HEADER);
+        String eTag = cachedResponse.getETag();
+        return requestETag != null && eTag != null && withoutEncodingSuffix(requestETag).equals(withoutEncodingSuffix(eTag));
+    }
+
+    /**
+     * @return true if the whole response was loaded, not a 304, a partial response or an error to be cached
+     */
+    private static boolean isComplete(WebUtilitiesResponseWrapper wrapper){
+        int status = wrapper.getStatus();
+        return status == 0 || status == HttpServletResponse.SC_OK; //0 if not set, 200 then
+    }
+
+    private CachedResponse awaitFlight(SingleFlight.Flight<CachedResponse> flight){
+        try{
+            return flight.await(loadTimeout);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static String getHeader(WebUtilitiesResponseWrapper wrapper, String name){
+        for (Map.Entry<String, Object> header : wrapper.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return String.valueOf(header.getValue());
+            }
+        }
+        return null;
+    }
+
     private void sendNotModified(HttpServletResponse httpServletResponse){
         httpServletResponse.setContentLength(0);
         httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
         LOGGER.trace("returning Not Modified (304)");
     }
+
+    /**
+     * Request without the conditional and range headers, for a reload to get the whole response
+     */
+    private static class UnconditionalRequest extends HttpServletRequestWrapper {
+
+        private static final String[] HIDDEN_HEADERS = {HTTP_IF_NONE_MATCH_HEADER, HTTP_IF_MODIFIED_SINCE, HTTP_IF_RANGE_HEADER, HTTP_RANGE_HEADER};
+
+        UnconditionalRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        private static boolean isHidden(String name) {
+            for (String header : HIDDEN_HEADERS) {
+                if (header.equalsIgnoreCase(name)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return isHidden(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<?> getHeaders(String name) {
+            return isHidden(name) ? Collections.enumeration(Collections.emptyList()) : super.getHeaders(name);
+        }
+
+        @Override
+        public long getDateHeader(String name) {
+            return isHidden(name) ? -1 : super.getDateHeader(name);
+        }
+
+        @Override
+        public Enumeration<?> getHeaderNames() {
+            List<Object> names = new ArrayList<Object>();
+            for (Enumeration<?> all = super.getHeaderNames(); all != null && all.hasMoreElements(); ) {
+                Object name = all.nextElement();
+                if (!isHidden(String.valueOf(name))) {
+                    names.add(name);
+                }
+            }
+            return Collections.enumeration(names);
+        }
+    }
+
+    /**
+     * Response the reload is loaded into once the one sent is committed, its status, headers and cookies are kept by
+     * the wrapper around it and not passed on
+     */
+    private static class DetachedResponse extends HttpServletResponseWrapper {
+
+        DetachedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+        }
+
+        @Override
+        public void setStatus(int sc) {
+        }
+
+        @Override
+        public void setStatus(int sc, String sm) {
+        }
+
+        @Override
+        public void sendError(int sc) {
+        }
+
+        @Override
+        public void sendError(int sc, String msg) {
+        }
+
+        @Override
+        public void sendRedirect(String location) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+        }
+
+        @Override
+        public void setContentType(String type) {
+        }
+
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+        }
+
+        @Override
+        public void setLocale(Locale locale) {
+        }
+
+        @Override
+        public void setBufferSize(int size) {
+        }
+
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void resetBuffer() {
+        }
+    }
+
+    private class Management implements ResponseCacheMBean {
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public double getHitRatio() {
+            long hitCount = getHits();
+            long total = hitCount + getMisses();
+            return total > 0 ? (double) hitCount / total : 0;
+        }
+
+        public int getEntries() {
+            return cache.size();
+        }
+
+        public long getBytes() {
+            return cache.getWeight();
+        }
+
+        public long getEvictions() {
+            return cache.getEvictionCount();
+        }
+
+        public int getDiskEntries() {
+            DiskStore store = disk;
+            return store != null ? store.size() : 0;
+        }
+
+        public long getDiskBytes() {
+            DiskStore store = disk;
+            return store != null ? store.getUsed() : 0;
+        }
+
+        public long getLoads() {
+            return loads.sum();
+        }
+
+        public long getTotalLoadTime() {
+            return loadNanos.sum() / 1000000;
+        }
+
+        public double getAverageLoadTime() {
+            long loadCount = getLoads();
+            return loadCount > 0 ? loadNanos.sum() / 1000000d / loadCount : 0;
+        }
+
+        public long getSecondsSinceReset() {
+            return (new Date().getTime() - lastResetTime) / 1000;
+        }
+
+        public int invalidate(String url) {
+            int query = url.indexOf('?');
+            String primaryKey = query < 0 ? CacheKey.primary(url, null) : CacheKey.primary(url.substring(0, query), url.substring(query + 1));
+            LOGGER.debug("Removing Cache for {} as asked.", primaryKey);
+            return removeByPrefix(primaryKey + CacheKey.VARIANT_SEPARATOR);
+        }
+
+        public int invalidatePrefix(String prefix) {
+            LOGGER.debug("Removing Cache for {}* as asked.", prefix);
+            return removeByPrefix(prefix);
+        }
+
+        public void reset() {
+            LOGGER.debug("Resetting whole Cache as asked.");
+            ResponseCacheFilter.this.reset(new Date().getTime());
+        }
+    }
 }
 
 
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.cache;
+
+import static com.googlecode.webutilities.common.Constants.HTTP_ACCEPT_ENCODING_HEADER;
+import static com.googlecode.webutilities.common.Constants.PARAM_DEBUG;
+import static com.googlecode.webutilities.common.Constants.PARAM_EXPIRE_CACHE;
+import static com.googlecode.webutilities.common.Constants.PARAM_RESET_CACHE;
+import static com.googlecode.webutilities.common.Constants.PARAM_SKIP_CACHE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.googlecode.webutilities.filters.compression.PrecompressedVariant;
+
+/**
+ * Builds cache keys of responses, so that a response is only served to requests it was meant for.
+ * <p>
+ * The primary key is the request URI along with its query, parameters sorted by name and those controlling the cache
+ * (<code>_skipcache_</code> etc.) left out. The variant key adds the encodings accepted by the request, as
+ * compressed and identity responses are to be told apart whether or not they name <code>Accept-Encoding</code> in
+ * <code>Vary</code>, and the values of any other request headers named in <code>Vary</code> of the response.
+ * Variant keys start with their primary key followed by {@link #VARIANT_SEPARATOR}, so all variants of a primary key
+ * can be dropped by prefix.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class CacheKey {
+
+    public static final char VARIANT_SEPARATOR = '#';
+
+    private static final String[] KNOWN_ENCODINGS = {"br", "gzip", "deflate", "compress"};
+
+    private static final Set<String> CONTROL_PARAMS = new HashSet<String>(Arrays.asList(
+        PARAM_SKIP_CACHE, PARAM_EXPIRE_CACHE, PARAM_RESET_CACHE, PARAM_DEBUG));
+
+    private static final String VARY_ANY = "*";
+
+    private static final Comparator<String> BY_PARAM_NAME = new Comparator<String>() {
+        public int compare(String one, String another) {
+            return paramName(one).compareTo(paramName(another));
+        }
+    };
+
+    private CacheKey() {
+    }
+
+    /**
+     * @param uri   - request URI
+     * @param query - query string of the request, null if none
+     * @return key shared by all variants of the response
+     */
+    public static String primary(String uri, String query) {
+        if (query == null || query.length() == 0) return uri;
+        List<String> params = new ArrayList<String>();
+        int start = 0;
+        while (start < query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            String param = query.substring(start, end);
+            if (param.length() > 0 && !CONTROL_PARAMS.contains(paramName(param))) {
+                params.add(param);
+            }
+            start = end + 1;
+        }
+        if (params.isEmpty()) return uri;
+        Collections.sort(params, BY_PARAM_NAME); //stable, values of a repeated parameter keep their order
+        StringBuilder key = new StringBuilder(uri.length() + query.length() + 1).append(uri);
+        char separator = '?';
+        for (String param : params) {
+            key.append(separator).append(param);
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param primary - primary key of the response
+     * @param request - request to be served
+     * @param vary    - lower case names of the request headers the response varies on, null if none
+     * @return key of the variant of the response for the request
+     */
+    public static String variant(String primary, HttpServletRequest request, String[] vary) {
+        StringBuilder key = new StringBuilder(primary.length() + 24).append(primary).append(VARIANT_SEPARATOR);
+        String acceptEncoding = request.getHeader(HTTP_ACCEPT_ENCODING_HEADER);
+        char separator = 0;
+        for (String encoding : KNOWN_ENCODINGS) {
+            if (PrecompressedVariant.isEncodingAccepted(acceptEncoding, encoding)) {
+                if (separator != 0) {
+                    key.append(separator);
+                }
+                key.append(encoding);
+                separator = ',';
+            }
+        }
+        if (vary != null) {
+            for (String name : vary) {
+                String value = request.getHeader(name);
+                key.append('|').append(name).append('=').append(value != null ? value.trim() : "");
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param vary - value of the <code>Vary</code> response header, null if none
+     * @return sorted, lower case names of the request headers other than <code>Accept-Encoding</code> the response
+     *         varies on, empty if none, null if it varies on anything (<code>*</code>) and can not be cached
+     */
+    public static String[] parseVary(String vary) {
+        if (vary == null) return new String[0];
+        Set<String> names = new HashSet<String>();
+        for (String name : vary.split(",")) {
+            name = name.trim().toLowerCase(Locale.ENGLISH);
+            if (VARY_ANY.equals(name)) return null;
+            if (name.length() > 0 && !HTTP_ACCEPT_ENCODING_HEADER.equalsIgnoreCase(name)) {
+                names.add(name);
+            }
+        }
+        String[] sorted = names.toArray(new String[names.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return sorted union of both lists of header names
+     */
+    public static String[] merge(String[] some, String[] others) {
+        if (some == null || some.length == 0) return others;
+        Set<String> names = new HashSet<String>(Arrays.asList(some));
+        if (!names.addAll(Arrays.asList(others))) return some;
+        String[] sorted = names.toArray(new String[names.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static String paramName(String param) {
+        int equals = param.indexOf('=');
+        return equals < 0 ? param : param.substring(0, equals);
+    }
+
+}
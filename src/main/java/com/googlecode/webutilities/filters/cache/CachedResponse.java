@@ -0,0 +1,295 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.cache;
+
+import static com.googlecode.webutilities.common.Constants.HTTP_ETAG_HEADER;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
+import com.googlecode.webutilities.util.HttpDateCodec;
+
+/**
+ * Immutable snapshot of a response to be cached, taken once when it is stored and replayed on every hit.
+ * <p>
+ * Unlike the wrapper it is taken from, it holds no reference to the container's response: headers are kept as
+ * parallel arrays of names and values encoded once (dates formatted, numbers printed), and the body either as a byte
+ * array of its exact size or kept elsewhere, off heap or on disk. Replaying it allocates nothing for a body held on
+ * the heap.
+ * </p>
+ * <p>
+ * Its validators, ETag and last modified time, answer conditional requests without looking at the resources, as long
+ * as none has changed since it was last found valid: the only state changing after it is taken is that epoch of
+ * resource changes, see {@link #isValidAt(long)}.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class CachedResponse {
+
+    private static final String[] NO_STRINGS = new String[0];
+
+    private static final Cookie[] NO_COOKIES = new Cookie[0];
+
+    private final int status;
+
+    private final String contentType;
+
+    private final String characterEncoding;
+
+    private final String[] headerNames;
+
+    private final String[] headerValues;
+
+    private final Cookie[] cookies;
+
+    private final String eTag;
+
+    private final long lastModified;
+
+    private final long cachedAt;
+
+    private final byte[] bytes;
+
+    private final Body body;
+
+    private final int size;
+
+    private volatile long validEpoch = -1;
+
+    CachedResponse(int status, String contentType, String characterEncoding, String[] headerNames,
+                   String[] headerValues, Cookie[] cookies, long lastModified, long cachedAt, byte[] bytes, Body body, int size) {
+        this.status = status;
+        this.contentType = contentType;
+        this.characterEncoding = characterEncoding;
+        this.headerNames = headerNames;
+        this.headerValues = headerValues;
+        this.cookies = cookies;
+        this.lastModified = lastModified;
+        this.cachedAt = cachedAt;
+        this.bytes = bytes;
+        this.body = body;
+        this.size = size;
+        String tag = null;
+        for (int i = 0; i < headerNames.length; i++) {
+            if (HTTP_ETAG_HEADER.equalsIgnoreCase(headerNames[i])) {
+                tag = headerValues[i];
+            }
+        }
+        this.eTag = tag;
+    }
+
+    /**
+     * @param response - snapshot to be copied
+     * @param body     - where the body of the copy is kept from now on
+     */
+    CachedResponse(CachedResponse response, Body body) {
+        this(response.status, response.contentType, response.characterEncoding, response.headerNames,
+            response.headerValues, response.cookies, response.lastModified, response.cachedAt, null, body, response.size);
+    }
+
+    /**
+     * @return copy of the snapshot with its body on the heap, itself if kept there already
+     */
+    CachedResponse onHeap() {
+        if (body == null) return this;
+        ByteArrayOutputStream contents = new ByteArrayOutputStream(size);
+        try {
+            body.writeTo(contents);
+        } catch (IOException ex) { //not thrown by an in memory stream
+            throw new IllegalStateException(ex);
+        }
+        CachedResponse copy = new CachedResponse(status, contentType, characterEncoding, headerNames, headerValues,
+            cookies, lastModified, cachedAt, contents.toByteArray(), null, size);
+        copy.validEpoch = validEpoch;
+        return copy;
+    }
+
+    /**
+     * @param wrapper      - wrapper the response was loaded into, not referenced by the snapshot
+     * @param lastModified - last modified time of the resources the response was made of
+     * @param body         - body kept elsewhere, null to copy it from the wrapper
+     * @return snapshot of the response
+     */
+    public static CachedResponse of(WebUtilitiesResponseWrapper wrapper, long lastModified, Body body) {
+        Map<String, Object> headers = wrapper.getHeaders();
+        String[] names = headers.isEmpty() ? NO_STRINGS : new String[headers.size()];
+        String[] values = headers.isEmpty() ? NO_STRINGS : new String[headers.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            Object value = header.getValue();
+            names[i] = header.getKey();
+            values[i++] = value instanceof Long ? HttpDateCodec.format((Long) value) : String.valueOf(value);
+        }
+        Set<Cookie> wrapperCookies = wrapper.getCookies();
+        Cookie[] cookies = wrapperCookies.isEmpty() ? NO_COOKIES : new Cookie[wrapperCookies.size()];
+        i = 0;
+        for (Cookie cookie : wrapperCookies) {
+            cookies[i++] = (Cookie) cookie.clone();
+        }
+        int size = wrapper.getSize();
+        return new CachedResponse(wrapper.getStatus(), wrapper.getContentType(), wrapper.getCharacterEncoding(),
+            names, values, cookies, lastModified, System.currentTimeMillis(), body == null ? wrapper.getBytes() : null, body, size);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    /**
+     * @return number of headers, apart from content type
+     */
+    public int getHeaderCount() {
+        return headerNames.length;
+    }
+
+    public String getHeaderName(int index) {
+        return headerNames[index];
+    }
+
+    public String getHeaderValue(int index) {
+        return headerValues[index];
+    }
+
+    public boolean hasCookies() {
+        return cookies.length > 0;
+    }
+
+    /**
+     * @return ETag header of the response, null if none
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return last modified time of the resources the response was made of
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return time the response was cached at
+     */
+    public long getCachedAt() {
+        return cachedAt;
+    }
+
+    /**
+     * @return size of the body in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return body when kept elsewhere, null when held by the snapshot
+     */
+    public Body getBody() {
+        return body;
+    }
+
+    /**
+     * @param epoch - count of resource changes the resources of the response were found unchanged at
+     */
+    public void setValidEpoch(long epoch) {
+        this.validEpoch = epoch;
+    }
+
+    /**
+     * @param epoch - current count of resource changes
+     * @return true if no resource has changed since the response was last found valid
+     */
+    public boolean isValidAt(long epoch) {
+        return validEpoch == epoch;
+    }
+
+    /**
+     * @param out - stream to write the whole body to
+     * @throws IOException - if it could not be written
+     */
+    public void writeBody(OutputStream out) throws IOException {
+        if (body != null) {
+            body.writeTo(out);
+        } else {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Fills the response with the status, headers, cookies and body of the snapshot.
+     *
+     * @param response - response to be filled
+     * @throws IOException - if the body could not be written
+     */
+    public void fill(HttpServletResponse response) throws IOException {
+        if (characterEncoding != null) {
+            response.setCharacterEncoding(characterEncoding);
+        }
+        response.setContentType(contentType);
+        for (Cookie cookie : cookies) {
+            response.addCookie(cookie);
+        }
+        for (int i = 0; i < headerNames.length; i++) {
+            response.setHeader(headerNames[i], headerValues[i]);
+        }
+        response.setStatus(status != 0 ? status : HttpServletResponse.SC_OK); //over that of a failed reload too
+        try {
+            writeBody(response.getOutputStream());
+            response.getOutputStream().close();
+        } catch (IllegalStateException ex) { //getWriter() already called
+            ByteArrayOutputStream contents = new ByteArrayOutputStream(size);
+            writeBody(contents);
+            response.getWriter().write(characterEncoding != null ? contents.toString(characterEncoding) : contents.toString());
+            response.getWriter().close();
+        }
+
+        if (response instanceof WebUtilitiesResponseWrapper) {
+            ((WebUtilitiesResponseWrapper) response).fill((HttpServletResponse) ((WebUtilitiesResponseWrapper) response).getResponse());
+        }
+    }
+
+    /**
+     * Response body kept outside of the snapshot
+     */
+    public interface Body {
+
+        /**
+         * @param out - stream to write the whole body to
+         * @throws IOException - if it could not be written
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+}
@@ -0,0 +1,784 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.Cookie;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent store of responses, kept in an append-only, memory mapped data file along with an index file of URL,
+ * validator and headers of every response, so that they survive restarts.
+ * <p>
+ * The data file is mapped in chunks of 16MB (or <code>maxBytes</code> if less) and bodies are appended to the last one, a body that does not fit in what
+ * is left of it starts a new chunk. Every stored or removed response appends a record to the index, which is replayed
+ * when the store is opened; a torn record at its end, from a crash while writing, is cut off. Once the data file would
+ * outgrow <code>maxBytes</code>, live responses are copied to new files, dropping the oldest ones if need be.
+ * </p>
+ * <p>
+ * Stored responses are looked up without locking. Responses given to {@link #put(String, CachedResponse)} are written
+ * by a background thread, so that callers (evicting from memory under a lock) never wait for the disk; they are
+ * dropped if more than <code>maxPending</code> are waiting already. Writes are batched: bodies are forced to disk
+ * before the index records naming them are written and synced, so that after a crash the index never names bytes
+ * which did not make it to the disk. Removals take effect at once, their records follow.
+ * </p>
+ * <p>
+ * As with {@link SlabStore}, stored bytes are never overwritten in place and every stored response is mapped as soon
+ * as it is known, so a body being read while it is removed, or while the files are compacted, is still read intact.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class DiskStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskStore.class.getName());
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final String DATA_FILE = "responses.dat";
+
+    private static final String INDEX_FILE = "responses.idx";
+
+    private static final String COMPACT_SUFFIX = ".tmp";
+
+    private static final byte RECORD_PUT = 'P';
+
+    private static final byte RECORD_REMOVE = 'R';
+
+    private static final int INDEX_VERSION = 1;
+
+    private static final Cookie[] NO_COOKIES = new Cookie[0];
+
+    private static final Operation CLEAR = new Operation(null, null, null);
+
+    private static final Operation CLOSE = new Operation(null, null, null);
+
+    private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+        public int compare(Entry entry, Entry other) {
+            return entry.sequence < other.sequence ? -1 : entry.sequence == other.sequence ? 0 : 1;
+        }
+    };
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private final int maxPending;
+
+    private final int chunkSize;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Responses waiting to be written, by key
+     */
+    private final ConcurrentMap<String, CachedResponse> pending = new ConcurrentHashMap<String, CachedResponse>();
+
+    private final BlockingQueue<Operation> operations = new LinkedBlockingQueue<Operation>();
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    //only used by the writer thread, once opened
+
+    private final Map<Long, MappedByteBuffer> chunks = new HashMap<Long, MappedByteBuffer>();
+
+    private final Map<MappedByteBuffer, Boolean> dirty = new IdentityHashMap<MappedByteBuffer, Boolean>();
+
+    private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+
+    private final DataOutputStream recordsOut = new DataOutputStream(records);
+
+    private final List<Entry> written = new ArrayList<Entry>();
+
+    private final List<CachedResponse> writtenFrom = new ArrayList<CachedResponse>();
+
+    private RandomAccessFile data;
+
+    private FileOutputStream indexOut;
+
+    private DataOutputStream index;
+
+    private long end;
+
+    private long sequence;
+
+    /**
+     * Opens the store in the directory, loading the responses stored earlier.
+     *
+     * @param directory - directory of the data and index files, created if need be
+     * @param maxBytes  - maximum size of the data file, 0 or less for no bound
+     * @throws IOException - if the files could not be opened
+     */
+    public DiskStore(File directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param directory  - directory of the data and index files, created if need be
+     * @param maxBytes   - maximum size of the data file, 0 or less for no bound
+     * @param maxPending - maximum number of responses waiting to be written
+     * @throws IOException - if the files could not be opened
+     */
+    public DiskStore(File directory, long maxBytes, int maxPending) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxPending = maxPending;
+        this.chunkSize = maxBytes > 0 && maxBytes < CHUNK_SIZE ? (int) maxBytes : CHUNK_SIZE;
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        new File(directory, DATA_FILE + COMPACT_SUFFIX).delete(); //left over from an interrupted compaction
+        new File(directory, INDEX_FILE + COMPACT_SUFFIX).delete();
+        open(new File(directory, DATA_FILE), new File(directory, INDEX_FILE));
+        LOGGER.debug("Disk store {} opened with {} responses, {} of {} bytes live", new Object[]{directory, entries.size(), used, end});
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "webutilities-disk-store");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param key - cache key
+     * @return stored response, null if none
+     */
+    public CachedResponse get(String key) {
+        CachedResponse queued = pending.get(key);
+        if (queued != null) return queued;
+        Entry entry = entries.get(key);
+        return entry != null ? entry.response : null;
+    }
+
+    /**
+     * Queues the response to be written, it is served by {@link #get(String)} meanwhile. A body kept elsewhere, like
+     * in a slab, is copied first as it may be freed as soon as this returns.
+     *
+     * @param key      - cache key
+     * @param response - response to be stored, along with its body
+     * @return true if queued (or stored already), false if closed, too many are waiting, or it has cookies, not to be
+     *         shared across restarts
+     */
+    public boolean put(String key, CachedResponse response) {
+        if (closed || response.hasCookies()) return false;
+        Entry stored = entries.get(key);
+        if (stored != null && stored.response == response || pending.get(key) == response) return true;
+        if (pending.size() >= maxPending) return false;
+        CachedResponse copy = response.getBody() instanceof Entry ? response : response.onHeap();
+        pending.put(key, copy);
+        operations.add(new Operation(key, copy, null));
+        return true;
+    }
+
+    /**
+     * @param key - cache key
+     */
+    public void remove(String key) {
+        boolean removed;
+        synchronized (pending) {
+            removed = pending.remove(key) != null;
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                used.addAndGet(-entry.length);
+                removed = true;
+            }
+        }
+        if (removed && !closed) {
+            operations.add(new Operation(key, null, null));
+        }
+    }
+
+    /**
+     * @param prefix - prefix of the keys to be removed
+     */
+    public void removeByPrefix(String prefix) {
+        List<String> keys = new ArrayList<String>(pending.keySet());
+        keys.addAll(entries.keySet());
+        for (String key : keys) {
+            if (key.startsWith(prefix)) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all stored responses, the files start over empty.
+     */
+    public void clear() {
+        synchronized (pending) {
+            pending.clear();
+            entries.clear();
+            used.set(0);
+        }
+        if (!closed) {
+            operations.add(CLEAR);
+        }
+    }
+
+    /**
+     * Waits for the responses queued so far to be written.
+     *
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        CountDownLatch written = new CountDownLatch(1);
+        operations.add(new Operation(null, null, written));
+        while (writer.isAlive() && !written.await(100, TimeUnit.MILLISECONDS)) {
+            //the writer may have stopped meanwhile
+        }
+    }
+
+    /**
+     * @return number of responses stored
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return bytes of live bodies
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Writes the responses queued and closes the files, stored responses are no longer served.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        operations.add(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        List<Operation> batch = new ArrayList<Operation>();
+        boolean open = true;
+        while (open) {
+            try {
+                batch.add(operations.take());
+            } catch (InterruptedException ex) {
+                break;
+            }
+            operations.drainTo(batch);
+            try {
+                open = write(batch);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to write disk store {}, disabling disk store", directory, ex);
+                open = false;
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Failed to write disk store {}, disabling disk store", directory, ex);
+                open = false;
+            }
+            for (Operation operation : batch) {
+                if (operation.written != null) {
+                    operation.written.countDown();
+                }
+            }
+            batch.clear();
+        }
+        closed = true;
+        closeQuietly();
+        synchronized (pending) {
+            pending.clear();
+            entries.clear();
+            used.set(0);
+        }
+        for (Operation operation : operations) { //release those flushing after close
+            if (operation.written != null) {
+                operation.written.countDown();
+            }
+        }
+    }
+
+    /**
+     * @return false once closed
+     */
+    private boolean write(List<Operation> batch) throws IOException {
+        for (Operation operation : batch) {
+            if (operation == CLOSE) {
+                commit();
+                return false;
+            } else if (operation == CLEAR) {
+                commit();
+                compact(0);
+            } else if (operation.response != null) {
+                if (pending.get(operation.key) == operation.response) { //not removed or replaced meanwhile
+                    write(operation.key, operation.response);
+                }
+            } else if (operation.key != null) {
+                recordsOut.writeByte(RECORD_REMOVE);
+                recordsOut.writeUTF(operation.key);
+            }
+        }
+        commit();
+        return true;
+    }
+
+    private void write(String key, CachedResponse response) throws IOException {
+        int length = response.getSize();
+        if (!reserve(length)) {
+            LOGGER.trace("Not storing {} on disk, {} bytes is too big", key, length);
+            pending.remove(key, response);
+            return;
+        }
+        Entry entry = new Entry(key, positionFor(length), length, response);
+        ByteBuffer view = map(entry.offset, length);
+        response.writeBody(new BufferOutputStream(view.duplicate()));
+        entry.view = view.asReadOnlyBuffer();
+        writePut(recordsOut, entry);
+        end = entry.offset + length;
+        written.add(entry);
+        writtenFrom.add(response);
+    }
+
+    /**
+     * Forces written bodies to disk, then writes and syncs their index records, and only then serves them.
+     */
+    private void commit() throws IOException {
+        if (records.size() == 0) return;
+        for (MappedByteBuffer buffer : dirty.keySet()) {
+            buffer.force();
+        }
+        dirty.clear();
+        records.writeTo(index);
+        records.reset();
+        index.flush();
+        indexOut.getFD().sync();
+        synchronized (pending) {
+            for (int i = 0; i < written.size(); i++) {
+                Entry entry = written.get(i);
+                if (pending.get(entry.key) == writtenFrom.get(i)) { //else removed meanwhile, its record follows
+                    add(entry); //before leaving pending, so it is always found
+                    pending.remove(entry.key, writtenFrom.get(i));
+                }
+            }
+        }
+        written.clear();
+        writtenFrom.clear();
+    }
+
+    private void open(File dataFile, File indexFile) throws IOException {
+        long dataLength = dataFile.length();
+        data = new RandomAccessFile(dataFile, "rw");
+        if (indexFile.length() > 0 && !load(indexFile, dataLength)) {
+            LOGGER.debug("Index of an older version, starting over");
+            closeQuietly();
+            entries.clear();
+            used.set(0);
+            end = 0;
+            indexFile.delete();
+            dataFile.delete();
+            data = new RandomAccessFile(dataFile, "rw");
+        }
+        openIndex(indexFile);
+    }
+
+    private void openIndex(File file) throws IOException {
+        boolean created = file.length() == 0;
+        indexOut = new FileOutputStream(file, !created);
+        index = new DataOutputStream(new BufferedOutputStream(indexOut));
+        if (created) {
+            index.writeInt(INDEX_VERSION);
+            index.flush();
+            indexOut.getFD().sync();
+        }
+    }
+
+    /**
+     * Replays the index, cutting off a torn or corrupt record at its end so that later records are appended to the
+     * last complete one.
+     *
+     * @return false if the index is of another version
+     */
+    private boolean load(File file, long dataLength) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter);
+        long complete = 0;
+        try {
+            if (in.readInt() != INDEX_VERSION) return false;
+            complete = counter.count;
+            while (true) {
+                byte type = in.readByte();
+                if (type == RECORD_PUT) {
+                    Entry entry = readPut(in);
+                    if (entry.offset + entry.length > dataLength) {
+                        LOGGER.debug("Data of {} missing, index ends here", entry.key);
+                        break;
+                    }
+                    entry.view = map(entry.offset, entry.length).asReadOnlyBuffer();
+                    end = Math.max(end, entry.offset + entry.length);
+                    add(entry);
+                } else if (type == RECORD_REMOVE) {
+                    Entry entry = entries.remove(in.readUTF());
+                    if (entry != null) {
+                        used.addAndGet(-entry.length);
+                    }
+                } else {
+                    LOGGER.debug("Corrupt index record, index ends here");
+                    break;
+                }
+                complete = counter.count;
+            }
+        } catch (EOFException ex) {
+            //end of index, possibly of a torn record
+        } finally {
+            in.close();
+        }
+        if (complete < file.length()) {
+            LOGGER.debug("Cutting index {} off at {} of {} bytes", new Object[]{file, complete, file.length()});
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(complete);
+            } finally {
+                truncated.close();
+            }
+        }
+        return true;
+    }
+
+    private void add(Entry entry) {
+        entry.sequence = ++sequence;
+        Entry previous = entries.put(entry.key, entry);
+        if (previous != null) {
+            used.addAndGet(-previous.length);
+        }
+        used.addAndGet(entry.length);
+    }
+
+    private long positionFor(int length) {
+        long remaining = chunkSize - end % chunkSize;
+        return remaining >= length || remaining == chunkSize ? end : end + remaining;
+    }
+
+    private boolean reserve(int length) throws IOException {
+        if (maxBytes <= 0 || positionFor(length) + length <= maxBytes) return true;
+        if (length > maxBytes / 2) return false;
+        commit(); //written so far are to be kept too
+        compact(maxBytes / 2 - length);
+        return positionFor(length) + length <= maxBytes;
+    }
+
+    /**
+     * Copies live responses to new files, newest first as long as they add up to no more than the given bytes.
+     * Responses removed meanwhile are dropped once copied, their records follow.
+     */
+    private void compact(long keepBytes) throws IOException {
+        List<Entry> all = new ArrayList<Entry>(entries.values());
+        Collections.sort(all, OLDEST_FIRST);
+        List<Entry> kept = new ArrayList<Entry>();
+        long keptBytes = 0;
+        for (int i = all.size() - 1; i >= 0; i--) {
+            Entry entry = all.get(i);
+            if (keptBytes + entry.length > keepBytes) break;
+            keptBytes += entry.length;
+            kept.add(0, entry);
+        }
+        File dataFile = new File(directory, DATA_FILE);
+        File indexFile = new File(directory, INDEX_FILE);
+        File newDataFile = new File(directory, DATA_FILE + COMPACT_SUFFIX);
+        File newIndexFile = new File(directory, INDEX_FILE + COMPACT_SUFFIX);
+        closeQuietly();
+        end = 0;
+        newDataFile.delete();
+        newIndexFile.delete();
+        data = new RandomAccessFile(newDataFile, "rw");
+        openIndex(newIndexFile);
+        List<Entry> copies = new ArrayList<Entry>(kept.size());
+        for (Entry entry : kept) {
+            Entry copy = new Entry(entry.key, positionFor(entry.length), entry.length, entry.response);
+            ByteBuffer view = map(copy.offset, copy.length);
+            view.duplicate().put(entry.view.duplicate());
+            copy.view = view.asReadOnlyBuffer();
+            writePut(recordsOut, copy);
+            end = copy.offset + copy.length;
+            copies.add(copy);
+        }
+        for (MappedByteBuffer buffer : dirty.keySet()) {
+            buffer.force();
+        }
+        dirty.clear();
+        records.writeTo(index);
+        records.reset();
+        index.flush();
+        indexOut.getFD().sync();
+        closeQuietly();
+        boolean replaced = (dataFile.delete() || !dataFile.exists()) && (indexFile.delete() || !indexFile.exists())
+            && newDataFile.renameTo(dataFile) && newIndexFile.renameTo(indexFile);
+        for (int i = 0; replaced && i < kept.size(); i++) {
+            Entry copy = copies.get(i);
+            copy.sequence = kept.get(i).sequence;
+            entries.replace(copy.key, kept.get(i), copy); //unless removed meanwhile, its record follows
+        }
+        for (Entry entry : all) { //those not kept
+            if (entries.remove(entry.key, entry)) {
+                used.addAndGet(-entry.length);
+            }
+        }
+        if (!replaced) {
+            throw new IOException("Unable to replace disk store files in " + directory);
+        }
+        data = new RandomAccessFile(dataFile, "rw");
+        openIndex(indexFile);
+        LOGGER.debug("Compacted disk store, {} responses kept, {} bytes", entries.size(), end);
+    }
+
+    /**
+     * @return buffer of the given region, a slice of its chunk unless it is bigger than a chunk
+     */
+    private ByteBuffer map(long offset, int length) throws IOException {
+        long chunkStart = offset - offset % chunkSize;
+        if (length == 0 || offset + length > chunkStart + chunkSize) {
+            MappedByteBuffer region = data.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, length);
+            dirty.put(region, Boolean.TRUE);
+            return region;
+        }
+        MappedByteBuffer chunk = chunks.get(chunkStart);
+        if (chunk == null) {
+            chunk = data.getChannel().map(FileChannel.MapMode.READ_WRITE, chunkStart, chunkSize);
+            chunks.put(chunkStart, chunk);
+        }
+        dirty.put(chunk, Boolean.TRUE);
+        ByteBuffer region = chunk.duplicate();
+        region.position((int) (offset - chunkStart));
+        region.limit((int) (offset - chunkStart) + length);
+        return region.slice();
+    }
+
+    private void closeQuietly() {
+        chunks.clear(); //mappings stay valid for those still reading them
+        dirty.clear();
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Failed to close disk store index", ex);
+            }
+        }
+        if (data != null) {
+            try {
+                data.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Failed to close disk store data", ex);
+            }
+        }
+        data = null;
+        index = null;
+        indexOut = null;
+    }
+
+    private static void writePut(DataOutputStream out, Entry entry) throws IOException {
+        CachedResponse response = entry.response;
+        out.writeByte(RECORD_PUT);
+        out.writeUTF(entry.key);
+        out.writeLong(response.getLastModified());
+        out.writeLong(response.getCachedAt());
+        out.writeLong(entry.offset);
+        out.writeInt(entry.length);
+        out.writeInt(response.getStatus());
+        out.writeUTF(response.getContentType() != null ? response.getContentType() : "");
+        out.writeUTF(response.getCharacterEncoding() != null ? response.getCharacterEncoding() : "");
+        out.writeInt(response.getHeaderCount());
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            out.writeUTF(response.getHeaderName(i));
+            out.writeUTF(response.getHeaderValue(i));
+        }
+    }
+
+    private static Entry readPut(DataInputStream in) throws IOException {
+        String key = in.readUTF();
+        long lastModified = in.readLong();
+        long cachedAt = in.readLong();
+        long offset = in.readLong();
+        int length = in.readInt();
+        int status = in.readInt();
+        String contentType = in.readUTF();
+        String characterEncoding = in.readUTF();
+        int count = in.readInt();
+        if (count < 0) throw new EOFException("Corrupt headers of " + key);
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+            values[i] = in.readUTF();
+        }
+        Entry entry = new Entry(key, offset, length, null);
+        entry.response = new CachedResponse(status, contentType.length() > 0 ? contentType : null,
+            characterEncoding.length() > 0 ? characterEncoding : null, names, values, NO_COOKIES, lastModified, cachedAt,
+            null, entry, length);
+        return entry;
+    }
+
+    /**
+     * Body of a response stored on disk
+     */
+    private static final class Entry implements CachedResponse.Body {
+
+        private final String key;
+
+        private final long offset;
+
+        private final int length;
+
+        private ByteBuffer view;
+
+        private CachedResponse response;
+
+        /**
+         * Order of storing, oldest first
+         */
+        private long sequence;
+
+        /**
+         * @param response - response to be stored, its copy with this as body is kept
+         */
+        Entry(String key, long offset, int length, CachedResponse response) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            if (response != null) {
+                this.response = new CachedResponse(response, this);
+            }
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            SlabStore.copy(view.duplicate(), out);
+        }
+    }
+
+    /**
+     * Put (with a response), remove (with a key only) or flush (with a latch) for the writer
+     */
+    private static final class Operation {
+
+        private final String key;
+
+        private final CachedResponse response;
+
+        private final CountDownLatch written;
+
+        Operation(String key, CachedResponse response, CountDownLatch written) {
+            this.key = key;
+            this.response = response;
+            this.written = written;
+        }
+    }
+
+    /**
+     * Counts bytes read, to know where the last complete index record ends
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Writes into a buffer
+     */
+    private static final class BufferOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            buffer.put(b, off, len);
+        }
+    }
+
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.filters.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded in-memory cache of responses by key, weighing each entry by its body size.
+ * <p>
+ * Entries are spread over up to 16 segments by hash of the key, each with its own lock and an equal share of
+ * <code>maxEntries</code> and <code>maxBytes</code>. Once a segment is over either bound, its least recently used
+ * entries are evicted, so eviction (and every other operation) only ever locks one segment. An entry heavier than a
+ * segment's share of bytes is not cached at all. A bound of 0 or less means no bound.
+ * </p>
+ *
+ * @param <V> type of cached values
+ * @author rpatil
+ * @version 1.0
+ */
+public class ResponseCache<V> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCache.class.getName());
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<V>[] segments;
+
+    private final StripedCounter evictions = new StripedCounter();
+
+    private volatile RemovalListener<V> removalListener;
+
+    public ResponseCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxEntries - maximum number of entries, 0 or less for no bound
+     * @param maxBytes   - maximum sum of weights (body sizes) of entries, 0 or less for no bound
+     */
+    @SuppressWarnings("unchecked")
+    public ResponseCache(int maxEntries, long maxBytes) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && (maxEntries <= 0 || count * 2 <= maxEntries)) {
+            count <<= 1;
+        }
+        segments = (Segment<V>[]) new Segment<?>[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<V>(maxEntries > 0 ? (maxEntries + count - 1) / count : 0, maxBytes > 0 ? maxBytes / count : 0, this);
+        }
+    }
+
+    /**
+     * @param removalListener - to be told of every value leaving the cache, null for none
+     */
+    public void setRemovalListener(RemovalListener<V> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * @param key - cache key
+     * @return cached value, null if none
+     */
+    public V get(String key) {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * @param key    - cache key
+     * @param value  - value to cache
+     * @param weight - weight of the value, size of the body in bytes
+     * @return true if cached, false if the value is too heavy to be cached
+     */
+    public boolean put(String key, V value, long weight) {
+        return segmentFor(key).put(key, value, weight);
+    }
+
+    /**
+     * @param key - cache key
+     * @return removed value, null if none
+     */
+    public V remove(String key) {
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * @param prefix - prefix of the keys to be removed
+     * @return number of entries removed
+     */
+    public int removeByPrefix(String prefix) {
+        int removed = 0;
+        for (Segment<V> segment : segments) {
+            removed += segment.removeByPrefix(prefix);
+        }
+        return removed;
+    }
+
+    public void clear() {
+        for (Segment<V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return number of entries cached
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return sum of weights (body sizes) of entries cached
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment<V> segment : segments) {
+            weight += segment.getWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * @return number of entries evicted to stay within bounds so far
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private void removed(String key, V value, boolean evicted) {
+        RemovalListener<V> listener = removalListener;
+        if (listener != null) {
+            listener.removed(key, value, evicted);
+        }
+    }
+
+    private Segment<V> segmentFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Told of values leaving the cache, removed, replaced or evicted, so that resources held by them can be released
+     *
+     * @param <V> type of cached values
+     */
+    public interface RemovalListener<V> {
+
+        /**
+         * Called while the segment of the key is locked, so it must not call back into the cache.
+         *
+         * @param key     - cache key
+         * @param value   - value that left the cache
+         * @param evicted - true if evicted to stay within bounds, false if removed or replaced
+         */
+        void removed(String key, V value, boolean evicted);
+    }
+
+    /**
+     * Value along with its weight
+     */
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Least recently used ordered share of the cache, guarded by its own lock
+     */
+    private static final class Segment<T> {
+
+        private final int maxEntries;
+
+        private final long maxBytes;
+
+        private final ResponseCache<T> owner;
+
+        private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true);
+
+        private long weight;
+
+        Segment(int maxEntries, long maxBytes, ResponseCache<T> owner) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.owner = owner;
+        }
+
+        synchronized T get(String key) {
+            Entry<T> entry = entries.get(key);
+            return entry != null ? entry.value : null;
+        }
+
+        synchronized boolean put(String key, T value, long valueWeight) {
+            if (maxBytes > 0 && valueWeight > maxBytes) {
+                LOGGER.trace("Not caching {}, {} bytes is more than {}", new Object[]{key, valueWeight, maxBytes});
+                remove(key);
+                return false;
+            }
+            Entry<T> previous = entries.put(key, new Entry<T>(value, valueWeight));
+            if (previous != null) {
+                weight -= previous.weight;
+                owner.removed(key, previous.value, false);
+            }
+            weight += valueWeight;
+            Iterator<Map.Entry<String, Entry<T>>> eldest = entries.entrySet().iterator();
+            while ((maxEntries > 0 && entries.size() > maxEntries) || (maxBytes > 0 && weight > maxBytes)) {
+                Map.Entry<String, Entry<T>> evicted = eldest.next();
+                eldest.remove();
+                weight -= evicted.getValue().weight;
+                owner.evictions.increment();
+                owner.removed(evicted.getKey(), evicted.getValue().value, true);
+                LOGGER.trace("Evicted {}", evicted.getKey());
+            }
+            return true;
+        }
+
+        synchronized T remove(String key) {
+            Entry<T> entry = entries.remove(key);
+            if (entry == null) return null;
+            weight -= entry.weight;
+            owner.removed(key, entry.value, false);
+            return entry.value;
+        }
+
+        synchronized int removeByPrefix(String prefix) {
+            int removed = 0;
+            Iterator<Map.Entry<String, Entry<T>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry<T>> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    iterator.remove();
+                    weight -= entry.getValue().weight;
+                    owner.removed(entry.getKey(), entry.getValue().value, false);
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        synchronized void clear() {
+            for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+                owner.removed(entry.getKey(), entry.getValue().value, false);
+            }
+            entries.clear();
+            weight = 0;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long getWeight() {
+            return weight;
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.cache;
+
+/**
+ * Management interface of a response cache, registered with JMX by every <code>ResponseCacheFilter</code> as
+ * <code>com.googlecode.webutilities:type=ResponseCacheFilter,context=&lt;display name&gt;,name=&lt;filter name&gt;</code>
+ * to watch its statistics, size <code>reloadTime</code>/<code>resetTime</code> by them, and purge it without the
+ * <code>_expirecache_</code>/<code>_resetcache_</code> request parameters.
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public interface ResponseCacheMBean {
+
+    /**
+     * @return requests served from the cache
+     */
+    long getHits();
+
+    /**
+     * @return cacheable requests not found in the cache, or found invalid
+     */
+    long getMisses();
+
+    /**
+     * @return hits out of hits and misses, 0 if none yet
+     */
+    double getHitRatio();
+
+    /**
+     * @return responses cached in memory
+     */
+    int getEntries();
+
+    /**
+     * @return bytes of response bodies cached in memory
+     */
+    long getBytes();
+
+    /**
+     * @return responses evicted from memory to stay within bounds so far
+     */
+    long getEvictions();
+
+    /**
+     * @return responses kept on disk, 0 if not configured
+     */
+    int getDiskEntries();
+
+    /**
+     * @return bytes of response bodies kept on disk, 0 if not configured
+     */
+    long getDiskBytes();
+
+    /**
+     * @return responses loaded by running the chain
+     */
+    long getLoads();
+
+    /**
+     * @return milliseconds taken by all loads
+     */
+    long getTotalLoadTime();
+
+    /**
+     * @return milliseconds taken by a load on average, 0 if none yet
+     */
+    double getAverageLoadTime();
+
+    /**
+     * @return seconds since the whole cache was last reset
+     */
+    long getSecondsSinceReset();
+
+    /**
+     * @param url - URI of the response, with its query if any, all its variants are removed
+     * @return number of responses removed from memory
+     */
+    int invalidate(String url);
+
+    /**
+     * @param prefix - prefix of the URIs of responses to be removed
+     * @return number of responses removed from memory
+     */
+    int invalidatePrefix(String prefix);
+
+    /**
+     * Removes all the responses, as <code>_resetcache_</code> does.
+     */
+    void reset();
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.filters.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent loads of the same key, so that one caller (the leader) loads while the others wait for its
+ * result instead of loading the same thing in parallel.
+ * <pre>
+ * SingleFlight.Flight&lt;V&gt; flight = flights.join(key);
+ * if (flight.isLeader()) {
+ *     V value = null;
+ *     try {
+ *         value = load(key);
+ *     } finally {
+ *         flights.land(key, flight, value); //null if not loaded, waiters load themselves then
+ *     }
+ * } else {
+ *     V value = flight.await(timeout); //null if leader failed or took too long
+ * }
+ * </pre>
+ *
+ * @param <V> type of loaded values
+ * @author rpatil
+ * @version 1.0
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentMap<String, Flight<V>> flights = new ConcurrentHashMap<String, Flight<V>>();
+
+    /**
+     * @param key - key to be loaded
+     * @return new flight led by the caller if the key is not being loaded, the ongoing flight to wait for otherwise
+     */
+    public Flight<V> join(String key) {
+        Flight<V> flight = new Flight<V>(true);
+        Flight<V> ongoing = flights.putIfAbsent(key, flight);
+        return ongoing != null ? ongoing.asFollower() : flight;
+    }
+
+    /**
+     * Completes the flight led by the caller, releasing the waiters.
+     *
+     * @param key    - key loaded
+     * @param flight - flight returned by {@link #join(String)} to the leader
+     * @param value  - loaded value, null if it could not be loaded
+     */
+    public void land(String key, Flight<V> flight, V value) {
+        flights.remove(key, flight);
+        flight.complete(value);
+    }
+
+    /**
+     * @return number of keys being loaded
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    /**
+     * A load in progress, as seen by the leader or one of the followers
+     */
+    public static final class Flight<V> {
+
+        private final boolean leader;
+
+        private final CountDownLatch landed;
+
+        private final Flight<V> led;
+
+        private volatile V value;
+
+        Flight(boolean leader) {
+            this.leader = leader;
+            this.landed = new CountDownLatch(1);
+            this.led = this;
+        }
+
+        private Flight(Flight<V> led) {
+            this.leader = false;
+            this.landed = led.landed;
+            this.led = led;
+        }
+
+        private Flight<V> asFollower() {
+            return new Flight<V>(this);
+        }
+
+        /**
+         * @return true if the caller is to load the value
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * @param timeout - milliseconds to wait at most
+         * @return value loaded by the leader, null if it could not be loaded or not in time
+         * @throws InterruptedException - if interrupted while waiting
+         */
+        public V await(long timeout) throws InterruptedException {
+            return landed.await(timeout, TimeUnit.MILLISECONDS) ? led.value : null;
+        }
+
+        private void complete(V value) {
+            this.value = value;
+            landed.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Off-heap store of response bodies, kept in direct <code>ByteBuffer</code> slabs outside of the java heap.
+ * <p>
+ * Bodies are allocated one after another in the current slab and never overwritten in place. Freeing a body only
+ * marks its bytes dead; a slab with no live bytes left is dropped, and when the store is full the slabs with the most
+ * dead bytes are compacted by moving their live bodies into a new, tightly sized slab. As slabs are never reused, a
+ * body being written while it is freed or moved is still read from its old, intact slab.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class SlabStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlabStore.class.getName());
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final int slabSize;
+
+    private final long maxBytes;
+
+    private final List<Slab> slabs = new ArrayList<Slab>();
+
+    private Slab current;
+
+    private long capacity;
+
+    private long used;
+
+    /**
+     * @param slabSize - bytes allocated at once for bodies, bodies bigger than that get a slab of their own
+     * @param maxBytes - maximum bytes held in slabs, 0 or less for no bound
+     */
+    public SlabStore(int slabSize, long maxBytes) {
+        this.slabSize = slabSize > 0 ? slabSize : DEFAULT_SLAB_SIZE;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param bytes - body to be stored
+     * @return stored body, null if the store is full
+     */
+    public synchronized Block store(byte[] bytes) {
+        int length = bytes.length;
+        if (length == 0) {
+            Block block = new Block(0);
+            block.view = EMPTY;
+            return block;
+        }
+        Slab slab = current;
+        try {
+            if (length > slabSize) {
+                if (!reserve(length)) return null;
+                slab = add(new Slab(length));
+            } else if (current == null || current.remaining() < length) {
+                if (!reserve(slabSize)) return null;
+                slab = current = add(new Slab(slabSize));
+            }
+        } catch (OutOfMemoryError e) {
+            LOGGER.warn("Could not allocate direct memory for {} bytes: {}", length, e.getMessage());
+            return null;
+        }
+        Block block = new Block(length);
+        slab.put(block, ByteBuffer.wrap(bytes));
+        used += length;
+        return block;
+    }
+
+    /**
+     * Marks the body dead, it remains readable by those already holding it.
+     *
+     * @param block - body stored earlier
+     */
+    public synchronized void free(Block block) {
+        Slab slab = block.slab;
+        if (slab == null) return;
+        slab.remove(block);
+        used -= block.length;
+        if (slab.live == 0 && slab != current) {
+            drop(slab);
+        }
+    }
+
+    /**
+     * @return bytes held in slabs, live or dead
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return bytes of live bodies
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    private Slab add(Slab slab) {
+        slabs.add(slab);
+        capacity += slab.buffer.capacity();
+        return slab;
+    }
+
+    private void drop(Slab slab) {
+        slabs.remove(slab);
+        capacity -= slab.buffer.capacity();
+        if (slab == current) {
+            current = null;
+        }
+    }
+
+    private boolean reserve(int bytes) {
+        while (maxBytes > 0 && capacity + bytes > maxBytes) {
+            if (!compact()) {
+                LOGGER.trace("Slabs full, {} of {} bytes live", used, capacity);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves live bodies of the slab with the most dead bytes into a slab of their size.
+     *
+     * @return false if there was nothing to reclaim
+     */
+    private boolean compact() {
+        Slab sparsest = null;
+        for (Slab slab : slabs) {
+            if (sparsest == null || slab.dead() > sparsest.dead()) {
+                sparsest = slab;
+            }
+        }
+        if (sparsest == null || sparsest.dead() == 0) {
+            return false;
+        }
+        drop(sparsest);
+        if (sparsest.live > 0) {
+            Slab compacted = add(new Slab(sparsest.live));
+            for (Block block : new ArrayList<Block>(sparsest.blocks)) {
+                compacted.put(block, block.view.duplicate());
+            }
+        }
+        LOGGER.trace("Compacted slab of {} bytes, {} live", sparsest.buffer.capacity(), sparsest.live);
+        return true;
+    }
+
+    /**
+     * Writes what remains in the buffer through a chunk reused by the calling thread.
+     */
+    static void copy(ByteBuffer source, OutputStream out) throws IOException {
+        byte[] chunk = CHUNK.get();
+        while (source.hasRemaining()) {
+            int count = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * A body stored in a slab
+     */
+    public static final class Block implements CachedResponse.Body {
+
+        private final int length;
+
+        private volatile ByteBuffer view;
+
+        private Slab slab;
+
+        private Block(int length) {
+            this.length = length;
+        }
+
+        /**
+         * @return size of the body in bytes
+         */
+        public int getLength() {
+            return length;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            copy(view.duplicate(), out);
+        }
+    }
+
+    /**
+     * Direct buffer filled from the start, along with the bodies living in it
+     */
+    private static final class Slab {
+
+        private final ByteBuffer buffer;
+
+        private final Set<Block> blocks = new HashSet<Block>();
+
+        private int top;
+
+        private int live;
+
+        Slab(int size) {
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        int remaining() {
+            return buffer.capacity() - top;
+        }
+
+        int dead() {
+            return top - live;
+        }
+
+        void put(Block block, ByteBuffer source) {
+            ByteBuffer target = buffer.duplicate();
+            target.position(top);
+            target.limit(top + block.length);
+            ByteBuffer view = target.slice();
+            target.put(source);
+            top += block.length;
+            live += block.length;
+            blocks.add(block);
+            block.slab = this;
+            block.view = view.asReadOnlyBuffer();
+        }
+
+        void remove(Block block) {
+            blocks.remove(block);
+            live -= block.length;
+            block.slab = null;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter cheap to update from many threads at once, for statistics read now and then.
+ * <p>
+ * Like <code>LongAdder</code> of Java 8, which is not there on Java 6, updates are spread over cells picked by
+ * thread, each on its own cache line, so that threads counting at once seldom contend; {@link #sum()} adds them up
+ * and is only as exact as a snapshot of moving counts can be.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class StripedCounter {
+
+    private static final int PADDING = 8; //longs to a 64 byte cache line
+
+    private static final int CELLS = cellsFor(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @param delta - value to be added
+     */
+    public void add(long delta) {
+        int cell = (int) (Thread.currentThread().getId() & (CELLS - 1));
+        cells.addAndGet(cell * PADDING, delta);
+    }
+
+    /**
+     * @return sum of the values added so far
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int cellsFor(int processors) {
+        int cells = 1;
+        while (cells < processors * 2 && cells < 64) {
+            cells <<= 1;
+        }
+        return cells;
+    }
+
+}
@@ -23,6 +23,9 @@ import javax.servlet.ServletException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.googlecode.webutilities.util.MimeRegistry;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+
 /**
  * Common AbstractFilter - infra filter code to be used by other filters
  * through inheritance
@@ -81,6 +84,8 @@ public abstract class AbstractFilter implements Filter, IgnoreAcceptContext {
 
         this.filterConfig = filterConfig;
 
+        MimeRegistry.getInstance(filterConfig.getServletContext()); //web application's own MIME types, if any
+
         this.ignoreURLPattern = filterConfig.getInitParameter(INIT_PARAM_IGNORE_URL_PATTERN);
 
         this.acceptURLPattern = filterConfig.getInitParameter(INIT_PARAM_ACCEPT_URL_PATTERN);
@@ -130,6 +135,9 @@ public abstract class AbstractFilter implements Filter, IgnoreAcceptContext {
     @Override
     public void destroy() {
         LOGGER.debug("destroying...");
+        if (this.filterConfig != null) {
+            ResourceMetadataRegistry.destroy(this.filterConfig.getServletContext()); //stops polling of the web application
+        }
         this.filterConfig = null;
     }
 
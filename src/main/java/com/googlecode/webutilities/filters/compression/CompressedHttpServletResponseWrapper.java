@@ -18,6 +18,7 @@
 
 package com.googlecode.webutilities.filters.compression;
 
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_BROTLI;
 import static com.googlecode.webutilities.common.Constants.DEFAULT_COMPRESSION_SIZE_THRESHOLD;
 import static com.googlecode.webutilities.common.Constants.HTTP_ACCEPT_ENCODING_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_CACHE_CONTROL_HEADER;
@@ -41,6 +42,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 import com.googlecode.webutilities.filters.common.IgnoreAcceptContext;
+import com.googlecode.webutilities.util.MimeRegistry;
 
 public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWrapper {
 
@@ -64,8 +66,11 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
 
     private IgnoreAcceptContext ignoreAcceptContext;
 
+    private final MimeRegistry mimeRegistry;
+
     private boolean mimeIgnored;
     private boolean noTransformSet;
+    private boolean partialContent;
     private int threshold = DEFAULT_COMPRESSION_SIZE_THRESHOLD;
 
     private static final List<String> UNALLOWED_HEADERS = new ArrayList<String>();
@@ -86,6 +91,16 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
     public CompressedHttpServletResponseWrapper(HttpServletResponse httpResponse,
                                                 EncodedStreamsFactory encodedStreamsFactory,
                                                 String contentEncoding, int threshold, IgnoreAcceptContext ignoreAcceptContext) {
+        this(httpResponse, encodedStreamsFactory, contentEncoding, threshold, ignoreAcceptContext, MimeRegistry.getInstance());
+    }
+
+    /**
+     * @param mimeRegistry - MIME types of the web application, to leave types not worth compressing alone
+     */
+    public CompressedHttpServletResponseWrapper(HttpServletResponse httpResponse,
+                                                EncodedStreamsFactory encodedStreamsFactory,
+                                                String contentEncoding, int threshold, IgnoreAcceptContext ignoreAcceptContext,
+                                                MimeRegistry mimeRegistry) {
         super(httpResponse);
         this.httpResponse = httpResponse;
         this.compressedContentEncoding = contentEncoding;
@@ -94,6 +109,7 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
         mimeIgnored = false;
         this.threshold = threshold;
         this.ignoreAcceptContext = ignoreAcceptContext;
+        this.mimeRegistry = mimeRegistry;
     }
 
     public void setThreshold(int threshold) {
@@ -139,6 +155,7 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
             savedContentEncoding = value;
             if (alreadyCompressedEncoding(value)) {
                 cancelCompression();
+                httpResponse.setHeader(HTTP_CONTENT_ENCODING_HEADER, value);
             }
         } else if (HTTP_CONTENT_LENGTH_HEADER.equalsIgnoreCase(name)) {
             setContentLength(Long.parseLong(value));
@@ -190,6 +207,7 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
             savedContentEncoding = value;
             if (alreadyCompressedEncoding(value)) {
                 cancelCompression();
+                httpResponse.setHeader(HTTP_CONTENT_ENCODING_HEADER, value);
             }
         } else if (HTTP_CONTENT_LENGTH_HEADER.equalsIgnoreCase(name)) {
             // Not setContentLength(); we want to potentially accommodate a long value here
@@ -204,6 +222,16 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
         }
     }
 
+    @Override
+    public void setStatus(int status) {
+        super.setStatus(status);
+        if (status == HttpServletResponse.SC_PARTIAL_CONTENT) {
+            LOGGER.trace("No compression: partial content");
+            partialContent = true; //ranges are of the uncompressed contents
+            cancelCompression();
+        }
+    }
+
     private void cancelCompression() {
         if (compressingStream != null) {
             try {
@@ -300,7 +328,9 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
     @Override
     public void setContentType(String contentType) {
         httpResponse.setContentType(contentType);
-        mimeIgnored = ignoreAcceptContext != null && !ignoreAcceptContext.isMIMEAccepted(contentType);
+        MimeRegistry.MimeType mimeType = mimeRegistry.forContentType(contentType);
+        mimeIgnored = (ignoreAcceptContext != null && !ignoreAcceptContext.isMIMEAccepted(contentType))
+            || (mimeType != null && !mimeType.isCompressible()); //compressed already, eg. images
         if (mimeIgnored && compressingStream != null) {
             cancelCompression();
         }
@@ -357,7 +387,7 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
 
     private static boolean alreadyCompressedEncoding(String encoding) {
 
-        return (encoding != null && EncodedStreamsFactory.SUPPORTED_ENCODINGS.containsKey(encoding));
+        return (encoding != null && (EncodedStreamsFactory.SUPPORTED_ENCODINGS.containsKey(encoding) || CONTENT_ENCODING_BROTLI.equals(encoding)));
 
     }
 
@@ -391,6 +421,10 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
             LOGGER.trace("No Compression: no-transform is set");
             return true;
         }
+        if (partialContent) {
+            LOGGER.trace("No Compression: partial content");
+            return true;
+        }
         return alreadyCompressedEncoding(savedContentEncoding);
     }
 }
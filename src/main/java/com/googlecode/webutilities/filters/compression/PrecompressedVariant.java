@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_BROTLI;
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_GZIP;
+
+import java.io.File;
+
+import com.googlecode.webutilities.util.ResourceMetadata;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+
+/**
+ * A precompressed sibling of a static resource, e.g. <code>foo.js.gz</code> or <code>foo.js.br</code> next to
+ * <code>foo.js</code>.
+ * <p>
+ * A sibling is used only if it is not older than the original file and the client accepts its encoding,
+ * so the bytes can be sent as they are instead of compressing the original on every request.
+ * Files are looked up through <code>ResourceMetadataRegistry</code>, hence missing siblings are not looked for on
+ * every request either.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class PrecompressedVariant {
+
+    /**
+     * Encodings looked for, in order of preference, along with the file suffix for each
+     */
+    private static final String[][] VARIANTS = {
+        {CONTENT_ENCODING_BROTLI, ".br"},
+        {CONTENT_ENCODING_GZIP, ".gz"}
+    };
+
+    private final File file;
+
+    private final String contentEncoding;
+
+    private final long length;
+
+    private PrecompressedVariant(File file, String contentEncoding, long length) {
+        this.file = file;
+        this.contentEncoding = contentEncoding;
+        this.length = length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @param registry       - resource metadata registry of the web application
+     * @param path           - context relative path of the original (uncompressed) file
+     * @param acceptEncoding - Accept-Encoding header value from the request
+     * @return most preferred fresh sibling accepted by the client, null if none
+     */
+    public static PrecompressedVariant find(ResourceMetadataRegistry registry, String path, String acceptEncoding) {
+        if (path == null || acceptEncoding == null) return null;
+        ResourceMetadata original = registry.get(path);
+        if (original == null) return null;
+        for (String[] variant : VARIANTS) {
+            if (!isEncodingAccepted(acceptEncoding, variant[0])) continue;
+            ResourceMetadata sibling = registry.get(path + variant[1]);
+            if (sibling != null && sibling.getLastModified() >= original.getLastModified()) {
+                return new PrecompressedVariant(new File(sibling.getRealPath()), variant[0], sibling.getLength());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param acceptEncoding - Accept-Encoding header value, eg. <code>gzip, deflate;q=0.5, br</code>
+     * @param encoding       - encoding to look for
+     * @return true if encoding (or <code>*</code>) is listed without <code>q=0</code>
+     */
+    public static boolean isEncodingAccepted(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) return false;
+        for (String accepts : acceptEncoding.split(",")) {
+            String[] parts = accepts.split(";");
+            String coding = parts[0].trim();
+            if (!coding.equalsIgnoreCase(encoding) && !"*".equals(coding)) continue;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        if (Float.parseFloat(param.substring(2)) <= 0f) return false;
+                    } catch (NumberFormatException ex) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -18,6 +18,7 @@ package com.googlecode.webutilities.modules.ne;
 
 import com.googlecode.webutilities.modules.infra.ModuleRequest;
 import com.googlecode.webutilities.modules.infra.ModuleResponse;
+import com.googlecode.webutilities.util.HttpDateCodec;
 import com.googlecode.webutilities.util.Utils;
 
 import javax.servlet.ServletContext;
@@ -195,13 +196,13 @@ class ResponseDirective extends RequestDirective {
             switch (action) {
                 case add:
                     if (dateValue != -99) {
-                        headerResponse.addDateHeader(headerName, dateValue);
+                        headerResponse.addHeader(headerName, HttpDateCodec.format(dateValue));
                     } else
                         headerResponse.addHeader(headerName, headerValue);
                     break;
                 case set:
                     if (dateValue != -99) {
-                        headerResponse.setDateHeader(headerName, dateValue);
+                        headerResponse.setHeader(headerName, HttpDateCodec.format(dateValue));
                     } else
                         headerResponse.forceHeader(headerName, headerValue);
                     break;
@@ -268,7 +269,7 @@ class ResponseDirective extends RequestDirective {
             string = string.substring(1, quoteEnd - 1);
         }
 
-        List<String> resourcesToMerge = Utils.findResourcesToMerge(request.getContextPath(), getURL(request));
+        List<String> resourcesToMerge = Utils.findResourcesToMerge(request.getContextPath(), getURL(request), context);
 
         Calendar cal = Calendar.getInstance();
         cal.setTimeInMillis(new Date().getTime());
@@ -18,17 +18,20 @@ package com.googlecode.webutilities.modules.ne;
 
 import com.googlecode.webutilities.modules.infra.ModuleRequest;
 import com.googlecode.webutilities.modules.infra.ModuleResponse;
+import com.googlecode.webutilities.servlets.merge.BundleWarmUp;
+import com.googlecode.webutilities.servlets.merge.ResourceMerger;
+import com.googlecode.webutilities.util.HttpDateCodec;
 import com.googlecode.webutilities.util.Utils;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.*;
-import java.util.Date;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.regex.Matcher;
 
 import static com.googlecode.webutilities.common.Constants.*;
 
@@ -45,37 +48,71 @@ public class JSCSSMergeModule implements IModule {
 
         boolean autoCorrectUrlsInCss = true;
 
+        String warmUp = null;
+
         String[] splits = ruleString.split("\\s+");
 
         assert splits.length >= 1;
 
         if (!splits[index++].equals(JSCSSMergeModule.class.getSimpleName())) return pair;
 
-        if (splits.length > 1) {
-
-            if ("autoCorrectUrlsInCss".equals(splits[index++])) {
-                if (splits.length > 2) {
-                    autoCorrectUrlsInCss = Utils.readBoolean(splits[index], true);
-                }
+        while (index + 1 < splits.length) {
+            String name = splits[index++];
+            String value = splits[index++];
+            if ("autoCorrectUrlsInCss".equals(name)) {
+                autoCorrectUrlsInCss = Utils.readBoolean(value, true);
+            } else if ("warmUp".equals(name)) {
+                warmUp = value; //bundles and/or directories separated by ;
             }
         }
-        pair = new DirectivePair(new JSCSSMergeDirective(autoCorrectUrlsInCss), null);
+        pair = new DirectivePair(new JSCSSMergeDirective(autoCorrectUrlsInCss, warmUp), null);
         return pair;
     }
 
 
 }
 
-class JSCSSMergeDirective implements PreChainDirective {
+class JSCSSMergeDirective implements PreChainDirective, InitDirective {
 
     boolean autoCorrectUrlsInCss = true;
 
+    String warmUp;
+
     ServletContext context;
 
+    private volatile ResourceMerger resourceMerger; //created on first request, when context is known
+
+    private BundleWarmUp bundleWarmUp;
+
     public static final Logger LOGGER = LoggerFactory.getLogger(JSCSSMergeDirective.class.getName());
 
-    JSCSSMergeDirective(boolean autoCorrectUrlsInCss) {
+    JSCSSMergeDirective(boolean autoCorrectUrlsInCss, String warmUp) {
         this.autoCorrectUrlsInCss = autoCorrectUrlsInCss;
+        this.warmUp = warmUp;
+    }
+
+    @Override
+    public void init(final ServletContext context) {
+        if (warmUp == null) return;
+        bundleWarmUp = BundleWarmUp.start(context, warmUp, new BundleWarmUp.Warmer() {
+            @Override
+            public void warm(List<String> resources) {
+                //context path is known per request only, so just compute ETags and fingerprints
+                Utils.buildETagForResources(resources, context);
+                getResourceMerger(context).merge("", new ByteArrayOutputStream(), resources);
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        if (bundleWarmUp != null) {
+            bundleWarmUp.stop();
+            bundleWarmUp = null;
+        }
+        if (resourceMerger != null) {
+            resourceMerger.shutdown();
+        }
     }
 
     @Override
@@ -85,7 +122,7 @@ class JSCSSMergeDirective implements PreChainDirective {
 
         LOGGER.trace("Started processing request : {}", url);
 
-        List<String> resourcesToMerge = Utils.findResourcesToMerge(request.getContextPath(), url);
+        List<String> resourcesToMerge = Utils.findResourcesToMerge(request.getContextPath(), url, context);
 
         //If not modified, return 304 and stop
         ResourceStatus status = isNotModified(request, response, resourcesToMerge);
@@ -104,7 +141,7 @@ class JSCSSMergeDirective implements PreChainDirective {
         addAppropriateResponseHeaders(extensionOrPath, resourcesToMerge, status.getActualETag(), response);
         try {
             OutputStream outputStream = response.getOutputStream();
-            int resourcesNotFound = processResources(request.getContextPath(), outputStream, resourcesToMerge, autoCorrectUrlsInCss);
+            int resourcesNotFound = getResourceMerger(context).merge(request.getContextPath(), outputStream, resourcesToMerge);
 
             if (resourcesNotFound > 0 && resourcesNotFound == resourcesToMerge.size()) { //all resources not found
                 response.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -134,6 +171,17 @@ class JSCSSMergeDirective implements PreChainDirective {
         return STOP_CHAIN;
     }
 
+    /**
+     * @param context - ServletContext
+     * @return merger, which remembers resolved image URLs of CSS across requests
+     */
+    private ResourceMerger getResourceMerger(ServletContext context) {
+        if (resourceMerger == null) {
+            resourceMerger = new ResourceMerger(context, autoCorrectUrlsInCss, false);
+        }
+        return resourceMerger;
+    }
+
     /**
      * @param response httpServletResponse
      */
@@ -158,14 +206,11 @@ class JSCSSMergeDirective implements PreChainDirective {
      */
     private ResourceStatus isNotModified(HttpServletRequest request, HttpServletResponse response, List<String> resourcesToMerge) {
         //If-Modified-Since
-        String ifModifiedSince = request.getHeader(HTTP_IF_MODIFIED_SINCE);
-        if (ifModifiedSince != null) {
-            Date date = Utils.readDateFromHeader(ifModifiedSince);
-            if (date != null) {
-                if (!Utils.isAnyResourceModifiedSince(resourcesToMerge, date.getTime(), context)) {
-                    this.sendNotModified(response);
-                    return new ResourceStatus(null, true);
-                }
+        long ifModifiedSince = HttpDateCodec.parse(request.getHeader(HTTP_IF_MODIFIED_SINCE));
+        if (ifModifiedSince != HttpDateCodec.INVALID) {
+            if (!Utils.isAnyResourceModifiedSinceHttpDate(resourcesToMerge, ifModifiedSince, context)) {
+                this.sendNotModified(response);
+                return new ResourceStatus(null, true);
             }
         }
         //If-None-match
@@ -177,114 +222,6 @@ class JSCSSMergeDirective implements PreChainDirective {
         return new ResourceStatus(actualETag, false);
     }
 
-    /**
-     * @param contextPath          HttpServletRequest context path
-     * @param outputStream         - OutputStream
-     * @param resourcesToMerge     list of resources to merge
-     * @param autoCorrectUrlsInCSS whether to correct image urls in merged css files response.
-     * @return number of non existing, unprocessed resources
-     */
-
-    private int processResources(String contextPath, OutputStream outputStream, List<String> resourcesToMerge, boolean autoCorrectUrlsInCSS) {
-
-        int resourcesNotFound = 0;
-
-        for (String resourcePath : resourcesToMerge) {
-
-            LOGGER.trace("Processing resource : {}", resourcePath);
-
-            InputStream is = null;
-
-            try {
-                is = context.getResourceAsStream(resourcePath);
-                if (is == null) {
-                    resourcesNotFound++;
-                    continue;
-                }
-                if (resourcePath.endsWith(EXT_CSS) && autoCorrectUrlsInCSS) { //Need to deal with images url in CSS
-
-                    this.processCSS(contextPath, resourcePath, is, outputStream);
-
-                } else {
-                    byte[] buffer = new byte[128];
-                    int c;
-                    while ((c = is.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, c);
-                    }
-                }
-            } catch (IOException e) {
-                LOGGER.error("Error while reading resource : {}", resourcePath);
-                LOGGER.error("IOException :",  e);
-            }
-
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException ex) {
-                    LOGGER.warn("Failed to close stream: {}", ex);
-                }
-                try {
-                    outputStream.flush();
-                } catch (IOException ex) {
-                    LOGGER.error("Failed to flush out:{}",  outputStream);
-                }
-            }
-
-        }
-        return resourcesNotFound;
-    }
-
-    /**
-     * @param cssFilePath - path of the cssFile
-     * @param contextPath - web app context path or custom context path
-     * @param inputStream - input stream
-     * @param outputStream - output stream
-     * @throws java.io.IOException - throws exception in case something woes wrong (IO read/write)
-     */
-    private void processCSS(String contextPath, String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        StringBuffer buffer = new StringBuffer();
-        while ((line = bufferedReader.readLine()) != null) {
-            buffer.setLength(0);
-            buffer.append(line);
-            line = this.processCSSLine(context, contextPath, cssFilePath, buffer);
-            outputStream.write((line + "\n").getBytes());
-        }
-    }
-
-    /**
-     * @param context - ServletContext
-     * @param contextPath - context path or custom configured context path
-     * @param cssFilePath - css file path
-     * @param line - one single line in a css file
-     * @return processed string with appropriate replacement of image URLs if any
-     */
-    private String processCSSLine(ServletContext context, String contextPath, String cssFilePath, StringBuffer line) {
-        Matcher matcher = CSS_IMG_URL_PATTERN.matcher(line);
-        String cssRealPath = context.getRealPath(cssFilePath);
-        while (matcher.find()) {
-            String refImgPath = matcher.group(1);
-            if (!Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
-                String resolvedImgPath = refImgPath;
-                if (!refImgPath.startsWith("/")) {
-                    resolvedImgPath = Utils.buildProperPath(Utils.getParentPath(cssFilePath), refImgPath);
-                }
-                String imgRealPath = context.getRealPath(resolvedImgPath);
-                String fingerPrint = Utils.buildETagForResource(resolvedImgPath, context);
-                int offset = line.indexOf(refImgPath);
-                line.replace(
-                        offset, //from
-                        offset + refImgPath.length(), //to
-                        contextPath + Utils.addFingerPrint(fingerPrint, resolvedImgPath)
-                );
-
-                Utils.updateReferenceMap(cssRealPath, imgRealPath);
-            }
-        }
-        return line.toString();
-    }
-
     /**
      * @param extensionOrFile  - .css or .js etc. (lower case) or the absolute path of the file in case of image files
      * @param resourcesToMerge - from request
@@ -63,6 +63,34 @@ public class NewModulesFilter extends AbstractFilter {
             LOGGER.debug("Using default config file.");
             config = Config.load();
         }
+
+        for (RulesMapping rulesMapping : config.rulesMappings) {
+            for (DirectivePair rulePair : rulesMapping.getRules()) {
+                if (rulePair.getPreChainDirective() instanceof InitDirective) {
+                    ((InitDirective) rulePair.getPreChainDirective()).init(filterConfig.getServletContext());
+                }
+                if (rulePair.getPostChainDirective() instanceof InitDirective) {
+                    ((InitDirective) rulePair.getPostChainDirective()).init(filterConfig.getServletContext());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (config != null) {
+            for (RulesMapping rulesMapping : config.rulesMappings) {
+                for (DirectivePair rulePair : rulesMapping.getRules()) {
+                    if (rulePair.getPreChainDirective() instanceof InitDirective) {
+                        ((InitDirective) rulePair.getPreChainDirective()).destroy();
+                    }
+                    if (rulePair.getPostChainDirective() instanceof InitDirective) {
+                        ((InitDirective) rulePair.getPostChainDirective()).destroy();
+                    }
+                }
+            }
+        }
+        super.destroy();
     }
 
 //    private IRule.Status process(Iterator iterator, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, FilterChain chain) throws IOException {
@@ -121,7 +149,7 @@ public class NewModulesFilter extends AbstractFilter {
         String url = getURL(httpRequest);
         String responseMime = httpResponse.getContentType();
         if (requestMime == null) {
-            responseMime = Utils.selectMimeByFile(url);
+            responseMime = Utils.selectMimeByFile(url, filterConfig.getServletContext());
         }
         List<DirectivePair> eligibleRules = null;
         for (RulesMapping rulesMapping : config.rulesMappings) {
@@ -178,7 +206,7 @@ public class NewModulesFilter extends AbstractFilter {
             //chaining
             try {
                 LOGGER.trace("Doing chaining, finally.");
-                filterChain.doFilter(servletRequest, servletResponse);
+                filterChain.doFilter(moduleRequest, moduleResponse);
                 //servletResponse.getWriter().close();
             } catch (Exception ex) {
                 ex.getCause().printStackTrace(servletResponse.getWriter());
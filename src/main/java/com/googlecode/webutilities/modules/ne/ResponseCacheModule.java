@@ -17,18 +17,23 @@
 package com.googlecode.webutilities.modules.ne;
 
 import com.googlecode.webutilities.common.Constants;
+import com.googlecode.webutilities.filters.cache.CachedResponse;
+import com.googlecode.webutilities.filters.cache.SlabStore;
 import com.googlecode.webutilities.modules.infra.ModuleRequest;
 import com.googlecode.webutilities.modules.infra.ModuleResponse;
+import com.googlecode.webutilities.util.HttpDateCodec;
 import com.googlecode.webutilities.util.Utils;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,7 +43,39 @@ public class ResponseCacheModule implements IModule {
 
     static long lastResetTime;
 
-    static final Map<String, CacheObject> cache = new ConcurrentHashMap<String, CacheObject>();
+    static final ConcurrentMap<String, CachedResponse> cache = new ConcurrentHashMap<String, CachedResponse>();
+
+    /**
+     * Direct memory slabs bodies are kept in, for rules with <code>storage direct</code>, shared by all of them
+     */
+    static volatile SlabStore slabs;
+
+    private static final String STORAGE_DIRECT = "direct";
+
+    /**
+     * Marks a request answered from the cache, its response is not stored again after the chain
+     */
+    static final String CACHED_ATTR = ResponseCacheModule.class.getName() + ".CACHED";
+
+    /**
+     * Marks the request reloading a stale response, others are served the stale one meanwhile within staleWhileRevalidate
+     */
+    static final String RELOADING_ATTR = ResponseCacheModule.class.getName() + ".RELOADING";
+
+    /**
+     * Stale response of a request reloading it, served in its place if the reload fails within staleIfError
+     */
+    static final String STALE_ATTR = ResponseCacheModule.class.getName() + ".STALE";
+
+    /**
+     * Milliseconds after which a reload that never finished, its chain having thrown, is taken over by another request
+     */
+    private static final long MAX_RELOAD_MILLIS = 60 * 1000L;
+
+    /**
+     * URLs being reloaded, with the time the reload started at
+     */
+    private static final ConcurrentMap<String, Long> reloads = new ConcurrentHashMap<String, Long>();
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCacheModule.class.getName());
 
@@ -47,24 +84,94 @@ public class ResponseCacheModule implements IModule {
 
         DirectivePair pair = null;
 
-        int index = 0, resetTime = 0, reloadTime = 0;
+        int resetTime = 0, reloadTime = 0, staleWhileRevalidate = 0, staleIfError = 0, slabSize = SlabStore.DEFAULT_SLAB_SIZE;
+
+        boolean direct = false;
 
         String[] tokens = ruleString.split("\\s+");
 
         assert tokens.length >= 1;
 
-        if (!tokens[index++].equals(ResponseCacheModule.class.getSimpleName())) return pair;
-
-        if ("resetTime".equals(tokens[index++])) {
-            resetTime = Utils.readInt(tokens[index++], resetTime);
+        if (!tokens[0].equals(ResponseCacheModule.class.getSimpleName())) return pair;
+
+        //name value pairs, in any order
+        for (int index = 1; index + 1 < tokens.length; index += 2) {
+            String name = tokens[index], value = tokens[index + 1];
+            if ("resetTime".equals(name)) {
+                resetTime = Utils.readInt(value, resetTime);
+            } else if ("reloadTime".equals(name)) {
+                reloadTime = Utils.readInt(value, reloadTime);
+            } else if ("staleWhileRevalidate".equals(name)) {
+                staleWhileRevalidate = Utils.readInt(value, staleWhileRevalidate);
+            } else if ("staleIfError".equals(name)) {
+                staleIfError = Utils.readInt(value, staleIfError);
+            } else if ("storage".equals(name)) {
+                direct = STORAGE_DIRECT.equalsIgnoreCase(value);
+            } else if ("slabSize".equals(name)) {
+                slabSize = Utils.readInt(value, slabSize);
+            }
         }
-        if ("reloadTime".equals(tokens[index++])) {
-            reloadTime = Utils.readInt(tokens[index], reloadTime);
+        if (direct) {
+            initSlabs(slabSize);
         }
-        pair = new DirectivePair(new CheckCacheDirective(reloadTime, resetTime), new StoreCacheDirective(reloadTime, resetTime));
+        pair = new DirectivePair(new CheckCacheDirective(reloadTime, resetTime, staleWhileRevalidate, staleIfError),
+                new StoreCacheDirective(reloadTime, resetTime, direct, staleIfError));
         return pair;
     }
 
+    private static synchronized void initSlabs(int slabSize) {
+        if (slabs == null) {
+            slabs = new SlabStore(slabSize, 0);
+        }
+    }
+
+    /**
+     * @param body - body of the response to be cached
+     * @return body kept in slabs, null if slabs could not hold it and it is to be kept on heap
+     */
+    static SlabStore.Block store(byte[] body) {
+        SlabStore store = slabs;
+        return store != null ? store.store(body) : null;
+    }
+
+    static void put(String url, CachedResponse cachedResponse) {
+        free(cache.put(url, cachedResponse));
+    }
+
+    static void remove(String url) {
+        free(cache.remove(url));
+    }
+
+    static void clear() {
+        for (Map.Entry<String, CachedResponse> entry : cache.entrySet()) {
+            if (cache.remove(entry.getKey(), entry.getValue())) {
+                free(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param url - URL of the stale response to be reloaded
+     * @return true if the caller is to reload it, false if another request is reloading it already
+     */
+    static boolean startReload(String url) {
+        long now = System.currentTimeMillis();
+        Long started = reloads.putIfAbsent(url, now);
+        return started == null || now - started > MAX_RELOAD_MILLIS && reloads.replace(url, started, now);
+    }
+
+    static void endReload(String url) {
+        reloads.remove(url);
+    }
+
+    /**
+     * Frees the slab block of a response no longer cached, it remains readable by requests already replaying it
+     */
+    private static void free(CachedResponse cachedResponse) {
+        if (cachedResponse != null && cachedResponse.getBody() instanceof SlabStore.Block) {
+            slabs.free((SlabStore.Block) cachedResponse.getBody());
+        }
+    }
 
     public static String getURL(HttpServletRequest request) {
         return Utils.removeFingerPrint(request.getRequestURI());
@@ -81,9 +188,15 @@ class CheckCacheDirective implements PreChainDirective {
 
     private int resetTime = 0;
 
-    CheckCacheDirective(int reloadTime, int resetTime) {
+    private int staleWhileRevalidate = 0;
+
+    private int staleIfError = 0;
+
+    CheckCacheDirective(int reloadTime, int resetTime, int staleWhileRevalidate, int staleIfError) {
         this.reloadTime = reloadTime;
         this.resetTime = resetTime;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.staleIfError = staleIfError;
     }
 
     @Override
@@ -93,14 +206,33 @@ class CheckCacheDirective implements PreChainDirective {
 
         String url = ResponseCacheModule.getURL(request);
 
-        CacheObject cacheObject = ResponseCacheModule.cache.get(url);
+        CachedResponse cachedResponse = ResponseCacheModule.cache.get(url);
+
+        long expiredFor = cachedResponse != null && reloadTime > 0 ? (now - cachedResponse.getCachedAt()) / 1000 - reloadTime : -1;
 
         boolean expireCache = request.getParameter(Constants.PARAM_EXPIRE_CACHE) != null ||
-                (cacheObject != null && reloadTime > 0 && (now - cacheObject.getTime()) / 1000 > reloadTime);
+                expiredFor > Math.max(staleWhileRevalidate, staleIfError);
 
         if (expireCache) {
             LOGGER.trace("Removing Cache for {} due to URL parameter.", url);
-            ResponseCacheModule.cache.remove(url);
+            ResponseCacheModule.remove(url);
+            cachedResponse = null; //its body may be freed
+        } else if (expiredFor > 0) {
+            //kept until reloaded, there is no chain to reload it with once the response is sent, so one request
+            //reloads it through the chain while the others are served the stale one
+            boolean reloading = ResponseCacheModule.startReload(url);
+            if (!reloading && expiredFor <= staleWhileRevalidate) {
+                LOGGER.trace("Serving stale Cache for {} while reloading it.", url);
+            } else {
+                LOGGER.trace("Reloading Cache for {} due to reload time.", url);
+                if (reloading) {
+                    request.setAttribute(ResponseCacheModule.RELOADING_ATTR, Boolean.TRUE);
+                }
+                if (expiredFor <= staleIfError) {
+                    request.setAttribute(ResponseCacheModule.STALE_ATTR, cachedResponse);
+                }
+                cachedResponse = null;
+            }
         }
 
         boolean resetCache = request.getParameter(Constants.PARAM_RESET_CACHE) != null ||
@@ -108,8 +240,9 @@ class CheckCacheDirective implements PreChainDirective {
 
         if (resetCache) {
             LOGGER.trace("Resetting whole Cache for due to URL parameter.");
-            ResponseCacheModule.cache.clear();
+            ResponseCacheModule.clear();
             ResponseCacheModule.lastResetTime = now;
+            cachedResponse = null;
         }
 
         boolean skipCache = request.getParameter(Constants.PARAM_DEBUG) != null || request.getParameter(Constants.PARAM_SKIP_CACHE) != null;
@@ -119,17 +252,19 @@ class CheckCacheDirective implements PreChainDirective {
             return OK;
         }
 
-        List<String> requestedResources = findResourcesToMerge(request.getContextPath(), url);
+        if (request.getHeader(Constants.HTTP_RANGE_HEADER) != null) {
+            LOGGER.trace("Skipping Cache for {} due to Range header.", url);
+            return OK;
+        }
+
+        List<String> requestedResources = findResourcesToMerge(request.getContextPath(), url, context);
         //If-Modified-Since
-        String ifModifiedSince = request.getHeader(Constants.HTTP_IF_MODIFIED_SINCE);
-        if (ifModifiedSince != null) {
-            Date date = Utils.readDateFromHeader(ifModifiedSince);
-            if (date != null) {
-                if (!Utils.isAnyResourceModifiedSince(requestedResources, date.getTime(), context)) {
-                    //cache.remove(url);
-                    this.sendNotModified(response);
-                    return STOP_CHAIN;
-                }
+        long ifModifiedSince = HttpDateCodec.parse(request.getHeader(Constants.HTTP_IF_MODIFIED_SINCE));
+        if (ifModifiedSince != HttpDateCodec.INVALID) {
+            if (!Utils.isAnyResourceModifiedSinceHttpDate(requestedResources, ifModifiedSince, context)) {
+                //cache.remove(url);
+                this.sendNotModified(response);
+                return STOP_CHAIN;
             }
         }
         //If-None-match
@@ -142,10 +277,10 @@ class CheckCacheDirective implements PreChainDirective {
 
         boolean cacheFound = false;
 
-        if (cacheObject != null && cacheObject.getModuleResponse() != null) {
-            if (requestedResources != null && Utils.isAnyResourceModifiedSince(requestedResources, cacheObject.getTime(), context)) {
+        if (cachedResponse != null) {
+            if (requestedResources != null && Utils.isAnyResourceModifiedSince(requestedResources, cachedResponse.getLastModified(), context)) {
                 LOGGER.trace("Some resources have been modified since last cache: {}", url);
-                ResponseCacheModule.cache.remove(url);
+                ResponseCacheModule.remove(url);
                 cacheFound = false;
             } else {
                 LOGGER.trace("Found valid cached response.");
@@ -157,7 +292,9 @@ class CheckCacheDirective implements PreChainDirective {
         if (cacheFound) {
             LOGGER.debug("Returning Cached response.");
             try {
-                cacheObject.getModuleResponse().fill(response);
+                //into the module response only, the filter commits it once the directives are done
+                cachedResponse.fill(new HttpServletResponseWrapper(response));
+                request.setAttribute(ResponseCacheModule.CACHED_ATTR, Boolean.TRUE);
                 return STOP_CHAIN;
             } catch (Exception ex) {
                 ex.printStackTrace();
@@ -180,7 +317,8 @@ class CheckCacheDirective implements PreChainDirective {
 
         CheckCacheDirective that = (CheckCacheDirective) o;
 
-        return reloadTime == that.reloadTime && resetTime == that.resetTime;
+        return reloadTime == that.reloadTime && resetTime == that.resetTime
+                && staleWhileRevalidate == that.staleWhileRevalidate && staleIfError == that.staleIfError;
 
     }
 
@@ -188,6 +326,8 @@ class CheckCacheDirective implements PreChainDirective {
     public int hashCode() {
         int result = reloadTime;
         result = 31 * result + resetTime;
+        result = 31 * result + staleWhileRevalidate;
+        result = 31 * result + staleIfError;
         return result;
     }
 }
@@ -200,26 +340,52 @@ class StoreCacheDirective implements PostChainDirective {
 
     private int resetTime = 0;
 
-    StoreCacheDirective(int reloadTime, int resetTime) {
+    private boolean direct;
+
+    private int staleIfError = 0;
+
+    StoreCacheDirective(int reloadTime, int resetTime, boolean direct, int staleIfError) {
         this.reloadTime = reloadTime;
         this.resetTime = resetTime;
+        this.direct = direct;
+        this.staleIfError = staleIfError;
     }
 
     @Override
     public int execute(ModuleRequest request, ModuleResponse response, ServletContext context) {
 
+        if (request.getAttribute(ResponseCacheModule.CACHED_ATTR) != null) {
+            return OK; //answered from the cache
+        }
+
         long now = new Date().getTime();
 
         String url = ResponseCacheModule.getURL(request);
 
-        CacheObject cacheObject = ResponseCacheModule.cache.get(url);
+        if (request.getAttribute(ResponseCacheModule.RELOADING_ATTR) != null) {
+            ResponseCacheModule.endReload(url);
+        }
 
-        boolean expireCache = request.getParameter(Constants.PARAM_EXPIRE_CACHE) != null ||
-                (cacheObject != null && reloadTime > 0 && (now - cacheObject.getTime()) / 1000 > reloadTime);
+        CachedResponse staleResponse = (CachedResponse) request.getAttribute(ResponseCacheModule.STALE_ATTR);
+
+        if (staleResponse != null && response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+            LOGGER.debug("Returning stale response, reload of {} failed.", url);
+            response.reset(); //the status of the failure too
+            response.setStatus(HttpServletResponse.SC_OK);
+            try {
+                staleResponse.fill(new HttpServletResponseWrapper(response));
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to return stale response for {}", url, ex);
+            }
+            return OK; //still cached, served until staleIfError is over
+        }
+
+        //expiry by reload time is left to CheckCacheDirective, a stale response stays cached until replaced
+        boolean expireCache = request.getParameter(Constants.PARAM_EXPIRE_CACHE) != null;
 
         if (expireCache) {
             LOGGER.trace("Removing Cache for {} due to URL parameter.", url);
-            ResponseCacheModule.cache.remove(url);
+            ResponseCacheModule.remove(url);
         }
 
         boolean resetCache = request.getParameter(Constants.PARAM_RESET_CACHE) != null ||
@@ -227,20 +393,21 @@ class StoreCacheDirective implements PostChainDirective {
 
         if (resetCache) {
             LOGGER.trace("Resetting whole Cache for due to URL parameter.");
-            ResponseCacheModule.cache.clear();
+            ResponseCacheModule.clear();
             ResponseCacheModule.lastResetTime = now;
         }
 
-        boolean skipCache = request.getParameter(Constants.PARAM_DEBUG) != null || request.getParameter(Constants.PARAM_SKIP_CACHE) != null;
+        boolean skipCache = request.getParameter(Constants.PARAM_DEBUG) != null || request.getParameter(Constants.PARAM_SKIP_CACHE) != null
+                || request.getHeader(Constants.HTTP_RANGE_HEADER) != null;
 
-        if (!skipCache && !expireCache && !resetCache && response.getStatus() != HttpServletResponse.SC_NOT_MODIFIED) {
-            List<String> requestedResources = findResourcesToMerge(request.getContextPath(), url);
-            try {
-                response.commit();
-            } catch (IOException e) {
-                LOGGER.warn("Response commit failed: ", e);
-            }
-            ResponseCacheModule.cache.put(url, new CacheObject(Utils.getLastModifiedFor(requestedResources, context), response));
+        //only whole responses, a partial (206) or error one would be served for every later request
+        boolean complete = response.getStatus() == 0 || response.getStatus() == HttpServletResponse.SC_OK;
+
+        if (!skipCache && !expireCache && !resetCache && complete) {
+            List<String> requestedResources = findResourcesToMerge(request.getContextPath(), url, context);
+            //snapshot, not the wrapper holding on to the container's response
+            SlabStore.Block body = direct ? ResponseCacheModule.store(response.getBytes()) : null;
+            ResponseCacheModule.put(url, CachedResponse.of(response, Utils.getLastModifiedFor(requestedResources, context), body));
             LOGGER.debug("Cache added for: {}", url);
         }
 
@@ -260,7 +427,8 @@ class StoreCacheDirective implements PostChainDirective {
 
         StoreCacheDirective that = (StoreCacheDirective) o;
 
-        return reloadTime == that.reloadTime && resetTime == that.resetTime;
+        return reloadTime == that.reloadTime && resetTime == that.resetTime && direct == that.direct
+                && staleIfError == that.staleIfError;
 
     }
 
@@ -268,38 +436,8 @@ class StoreCacheDirective implements PostChainDirective {
     public int hashCode() {
         int result = reloadTime;
         result = 31 * result + resetTime;
+        result = 31 * result + (direct ? 1 : 0);
+        result = 31 * result + staleIfError;
         return result;
     }
 }
-
-
-class CacheObject {
-
-    private long time;
-
-    //private long accessCount = 0;
-
-    private ModuleResponse moduleResponse;
-
-    CacheObject(long time, ModuleResponse moduleResponse) {
-        this.time = time;
-        this.moduleResponse = moduleResponse;
-    }
-
-    public long getTime() {
-        return time;
-    }
-
-    public ModuleResponse getModuleResponse() {
-        return moduleResponse;
-    }
-
-    /*public void increaseAccessCount(){
-        accessCount++;
-    }
-
-    public long getAccessCount(){
-        return this.accessCount;
-    }*/
-
-}
@@ -15,29 +15,38 @@
  */
 package com.googlecode.webutilities.servlets;
 
-import static com.googlecode.webutilities.common.Constants.CSS_IMG_URL_PATTERN;
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_GZIP;
 import static com.googlecode.webutilities.common.Constants.DEFAULT_CACHE_CONTROL;
 import static com.googlecode.webutilities.common.Constants.DEFAULT_EXPIRES_MINUTES;
-import static com.googlecode.webutilities.common.Constants.EXT_CSS;
 import static com.googlecode.webutilities.common.Constants.HEADER_EXPIRES;
 import static com.googlecode.webutilities.common.Constants.HEADER_LAST_MODIFIED;
 import static com.googlecode.webutilities.common.Constants.HEADER_X_OPTIMIZED_BY;
+import static com.googlecode.webutilities.common.Constants.HTTP_ACCEPT_ENCODING_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_ACCEPT_RANGES_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_CACHE_CONTROL_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_ENCODING_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_LENGTH_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_RANGE_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_ETAG_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_IF_MODIFIED_SINCE;
 import static com.googlecode.webutilities.common.Constants.HTTP_IF_NONE_MATCH_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_VARY_HEADER;
+import static com.googlecode.webutilities.common.Constants.PARAM_DEBUG;
+import static com.googlecode.webutilities.common.Constants.PARAM_EXPIRE_CACHE;
+import static com.googlecode.webutilities.common.Constants.PARAM_SKIP_CACHE;
+import static com.googlecode.webutilities.common.Constants.RANGE_UNIT_BYTES;
 import static com.googlecode.webutilities.common.Constants.X_OPTIMIZED_BY_VALUE;
 import static com.googlecode.webutilities.util.Utils.*;
 
-import java.io.*;
-import java.util.Date;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.regex.Matcher;
-
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -45,6 +54,19 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.googlecode.webutilities.filters.compression.PrecompressedVariant;
+import com.googlecode.webutilities.servlets.merge.BundleManifest;
+import com.googlecode.webutilities.servlets.merge.ByteRanges;
+import com.googlecode.webutilities.servlets.merge.BundleStore;
+import com.googlecode.webutilities.servlets.merge.BundleWarmUp;
+import com.googlecode.webutilities.servlets.merge.FileTransfer;
+import com.googlecode.webutilities.servlets.merge.MergedBundle;
+import com.googlecode.webutilities.servlets.merge.PrecompressedBundles;
+import com.googlecode.webutilities.servlets.merge.ResourceMerger;
+import com.googlecode.webutilities.util.HttpDateCodec;
+import com.googlecode.webutilities.util.MimeRegistry;
+import com.googlecode.webutilities.util.ResourceMetadata;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
 
 /**
  * The <code>JSCSSMergeServet</code> is the Http Servlet to combine multiple JS or CSS static resources in one HTTP request.
@@ -113,12 +135,29 @@ import javax.servlet.http.HttpServletResponse;
  * <pre>
  *  <b>expiresMinutes</b> - Relative number of minutes (added to current time) to be set as Expires header
  *  <b>useCache</b> - to cache the earlier merged contents and serve from cache. Default true.
+ *  <b>cacheMaxEntries</b> - maximum number of merged bundles to keep in the cache. Default 256.
+ *  <b>usePrecompressed</b> - serve fresh <code>.br</code>/<code>.gz</code> siblings of a resource as is, and gzip merged bundles once,
+ *  in the background, into the webapp temp dir, to clients accepting the encoding. Default false.
+ *  <b>warmUp</b> - bundle URLs (eg. /js/a,b,c.js) and/or directories (eg. /css/) separated by spaces or ;
+ *  to be merged, fingerprinted and cached in background right after startup. Default none.
+ *  <b>bundleManifest</b> - context relative path of a properties file (eg. /WEB-INF/bundles.properties) defining named
+ *  bundles of resources from any directories, eg. <code>app.js=/js/prototype.js,/lib/controls.js</code>. Named bundles
+ *  are served at short hashed URLs like <code>/bundle/app-3f9c0a1b.js</code>, see <code>BundleManifest</code>. Default none.
+ *  <b>parallelLoadThreads</b> - number of threads loading members of large bundles concurrently. Default 0, loaded serially.
+ *  <b>parallelLoadMinResources</b> - bundles with at least these many members are loaded concurrently. Default 8.
+ *  <b>parallelLoadMinBytes</b> - bundles with at least these many bytes in total are loaded concurrently. Default 262144.
  * </pre>
+ * <h3>Range and HEAD requests</h3>
+ * <p>
+ * Single and multiple byte ranges (<code>Range</code>, <code>If-Range</code>) are served from merged and single
+ * resources. <code>HEAD</code> requests are answered from resource metadata and cached bundles, without merging.
+ * </p>
  * <h3>Dependency</h3>
  * <p>Servlet and JSP api (mostly provided by servlet container eg. Tomcat).</p>
  * <p><b>servlet-api.jar</b> - Must be already present in your webapp classpath</p>
  * <h3>Notes on Cache</h3>
  * <p>If you have not set useCache parameter to false then cache will be used and contents will be always served from cache if found.
+ * Cached contents are held along with their ETag and are rebuilt as soon as any of the merged resources is modified.
  * Sometimes you may not want to use cache or you may want to evict the cache then using URL parameters you can do that.
  * </p>
  * <h4>URL Parameters to skip or evict the cache</h4>
@@ -137,6 +176,7 @@ import javax.servlet.http.HttpServletResponse;
  * <p>
  * The multiple JS or CSS files <b>can be combined together in one request if they are in same parent path</b>. eg. <code><b>/myapp/js/a.js</b></code>, <code><b>/myapp/js/b.js</b></code> and <code><b>/myapp/js/c.js</b></code>
  * can be combined together as <code><b>/myapp/js/a,b,c.js</b></code>. If they are not in infra path then they can not be combined in one request. Same applies for CSS too.
+ * Resources from different paths can be combined by defining a named bundle in <b>bundleManifest</b>.
  * </p>
  * <p/>
  * Visit http://code.google.com/p/webutilities/wiki/JSCSSMergeServlet for more details.
@@ -162,6 +202,28 @@ public class JSCSSMergeServlet extends HttpServlet {
 
     public static final String INIT_PARAM_CUSTOM_CONTEXT_PATH_FOR_CSS_URLS = "customContextPathForCSSUrls";
 
+    public static final String INIT_PARAM_USE_CACHE = "useCache";
+
+    public static final String INIT_PARAM_CACHE_MAX_ENTRIES = "cacheMaxEntries";
+
+    public static final String INIT_PARAM_USE_PRECOMPRESSED = "usePrecompressed";
+
+    public static final String INIT_PARAM_WARM_UP = "warmUp";
+
+    public static final String INIT_PARAM_BUNDLE_MANIFEST = "bundleManifest";
+
+    public static final String INIT_PARAM_PARALLEL_LOAD_THREADS = "parallelLoadThreads";
+
+    public static final String INIT_PARAM_PARALLEL_LOAD_MIN_RESOURCES = "parallelLoadMinResources";
+
+    public static final String INIT_PARAM_PARALLEL_LOAD_MIN_BYTES = "parallelLoadMinBytes";
+
+    private static final int DEFAULT_PARALLEL_LOAD_MIN_RESOURCES = 8;
+
+    private static final long DEFAULT_PARALLEL_LOAD_MIN_BYTES = 256 * 1024; //256KB
+
+    private static final String CONTEXT_TEMP_DIR_ATTR = "javax.servlet.context.tempdir";
+
     private long expiresMinutes = DEFAULT_EXPIRES_MINUTES; //default value 7 days
 
     private String cacheControl = DEFAULT_CACHE_CONTROL; //default
@@ -176,6 +238,20 @@ public class JSCSSMergeServlet extends HttpServlet {
 
     private boolean turnOfUrlFingerPrinting = false; //default enabled fingerprinting
 
+    private boolean useCache = true; //default
+
+    private BundleStore bundleStore;
+
+    private ResourceMerger resourceMerger;
+
+    private boolean usePrecompressed = false; //default
+
+    private PrecompressedBundles precompressedBundles;
+
+    private BundleWarmUp warmUp;
+
+    private BundleManifest bundleManifest;
+
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
@@ -185,32 +261,70 @@ public class JSCSSMergeServlet extends HttpServlet {
         this.turnOfETag = readBoolean(config.getInitParameter(INIT_PARAM_TURN_OFF_E_TAG), this.turnOfETag);
         this.turnOfUrlFingerPrinting = readBoolean(config.getInitParameter(INIT_PARAM_TURN_OFF_URL_FINGERPRINTING), this.turnOfUrlFingerPrinting);
         this.customContextPathForCSSUrls = config.getInitParameter(INIT_PARAM_CUSTOM_CONTEXT_PATH_FOR_CSS_URLS);
-        LOGGER.debug("Servlet initialized: {\n\t{}:{},\n\t{}:{},\n\t{}:{},\n\t{}:{}\n\t{}:{}\n}", new Object[]{
+        this.useCache = readBoolean(config.getInitParameter(INIT_PARAM_USE_CACHE), this.useCache);
+        this.bundleStore = new BundleStore(readInt(config.getInitParameter(INIT_PARAM_CACHE_MAX_ENTRIES), BundleStore.DEFAULT_MAX_ENTRIES));
+        this.resourceMerger = new ResourceMerger(config.getServletContext(), this.autoCorrectUrlsInCSS, this.turnOfUrlFingerPrinting);
+        this.resourceMerger.enableParallelLoading(readInt(config.getInitParameter(INIT_PARAM_PARALLEL_LOAD_THREADS), 0),
+            readInt(config.getInitParameter(INIT_PARAM_PARALLEL_LOAD_MIN_RESOURCES), DEFAULT_PARALLEL_LOAD_MIN_RESOURCES),
+            readLong(config.getInitParameter(INIT_PARAM_PARALLEL_LOAD_MIN_BYTES), DEFAULT_PARALLEL_LOAD_MIN_BYTES));
+        this.usePrecompressed = readBoolean(config.getInitParameter(INIT_PARAM_USE_PRECOMPRESSED), this.usePrecompressed);
+        Object tempDir = config.getServletContext().getAttribute(CONTEXT_TEMP_DIR_ATTR);
+        this.precompressedBundles = new PrecompressedBundles(new File(tempDir instanceof File ? (File) tempDir :
+            new File(System.getProperty("java.io.tmpdir")), "webutilities-bundles"));
+        String bundleManifestPath = config.getInitParameter(INIT_PARAM_BUNDLE_MANIFEST);
+        this.bundleManifest = bundleManifestPath != null ? BundleManifest.load(config.getServletContext(), bundleManifestPath) : null;
+        MimeRegistry.getInstance(config.getServletContext()); //web application's own MIME types, if any
+        LOGGER.debug("Servlet initialized: {\n\t{}:{},\n\t{}:{},\n\t{}:{},\n\t{}:{}\n\t{}:{}\n\t{}:{}\n\t{}:{}\n}", new Object[]{
             INIT_PARAM_EXPIRES_MINUTES, String.valueOf(this.expiresMinutes),
             INIT_PARAM_CACHE_CONTROL, this.cacheControl,
             INIT_PARAM_AUTO_CORRECT_URLS_IN_CSS, String.valueOf(this.autoCorrectUrlsInCSS),
             INIT_PARAM_TURN_OFF_E_TAG, String.valueOf(this.turnOfETag),
-            INIT_PARAM_TURN_OFF_URL_FINGERPRINTING, String.valueOf(this.turnOfUrlFingerPrinting)}
+            INIT_PARAM_TURN_OFF_URL_FINGERPRINTING, String.valueOf(this.turnOfUrlFingerPrinting),
+            INIT_PARAM_USE_CACHE, String.valueOf(this.useCache),
+            INIT_PARAM_USE_PRECOMPRESSED, String.valueOf(this.usePrecompressed)}
         );
+        String warmUpBundles = config.getInitParameter(INIT_PARAM_WARM_UP);
+        if (warmUpBundles != null && warmUpBundles.trim().length() > 0) {
+            final String contextPathForCss = customContextPathForCSSUrls != null ?
+                customContextPathForCSSUrls : BundleWarmUp.getContextPath(config.getServletContext());
+            if (contextPathForCss == null) {
+                LOGGER.info("Context path is not known before first request, warm up will not fill the cache.");
+            }
+            this.warmUp = BundleWarmUp.start(config.getServletContext(), warmUpBundles, new BundleWarmUp.Warmer() {
+                @Override
+                public void warm(List<String> resources) {
+                    warmUpBundle(contextPathForCss, resources);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.warmUp != null) {
+            this.warmUp.stop();
+        }
+        this.resourceMerger.shutdown();
+        this.precompressedBundles.shutdown();
+        ResourceMetadataRegistry.destroy(this.getServletContext()); //stops polling of the web application
+        super.destroy();
     }
 
     /**
-     * @param extensionOrFile  - .css or .js etc. (lower case) or the absolute path of the file in case of image files
-     * @param resourcesToMerge - from request
-     * @param hashForETag      - from request
-     * @param resp             - response object
+     * @param mime         - content type of the merged response
+     * @param hashForETag  - ETag of the merged resources
+     * @param lastModified - last modified time of the merged resources
+     * @param resp         - response object
      */
 
-    private void addAppropriateResponseHeaders(String extensionOrFile, List<String> resourcesToMerge, String hashForETag, HttpServletResponse resp) {
-        String mime = selectMimeForExtension(extensionOrFile);
+    private void addAppropriateResponseHeaders(String mime, String hashForETag, long lastModified, HttpServletResponse resp) {
         if (mime != null) {
             LOGGER.trace("Setting MIME to {}", mime);
             resp.setContentType(mime);
         }
-        long lastModifiedFor = getLastModifiedFor(resourcesToMerge, this.getServletContext());
-        resp.addDateHeader(HEADER_EXPIRES, new Date().getTime() + expiresMinutes * 60 * 1000);
+        resp.addHeader(HEADER_EXPIRES, HttpDateCodec.formatFromNow(expiresMinutes * 60 * 1000L));
         resp.addHeader(HTTP_CACHE_CONTROL_HEADER, this.cacheControl);
-        resp.addDateHeader(HEADER_LAST_MODIFIED, lastModifiedFor);
+        resp.addHeader(HEADER_LAST_MODIFIED, HttpDateCodec.format(lastModified));
         if (hashForETag != null && !this.turnOfETag) {
             resp.addHeader(HTTP_ETAG_HEADER, hashForETag);
         }
@@ -229,7 +343,7 @@ public class JSCSSMergeServlet extends HttpServlet {
 
         LOGGER.debug("Started processing request : {}", url);
 
-        List<String> resourcesToMerge = findResourcesToMerge(req.getContextPath(), url);
+        List<String> resourcesToMerge = this.findResources(req.getContextPath(), url);
 
         //If not modified, return 304 and stop
         ResourceStatus status = this.isNotModified(req, resp, resourcesToMerge);
@@ -239,186 +353,422 @@ public class JSCSSMergeServlet extends HttpServlet {
             return;
         }
 
-        String extensionOrPath = detectExtension(url);//in case of non js/css files it null
-        if (extensionOrPath == null) {
-            extensionOrPath = resourcesToMerge.get(0);//non grouped i.e. non css/js file, we refer it's path in that case
-        }
-
-        //Add appropriate headers
-        this.addAppropriateResponseHeaders(extensionOrPath, resourcesToMerge, status.getActualETag(), resp);
-
-        OutputStream outputStream = resp.getOutputStream();
         String contextPathForCss = customContextPathForCSSUrls != null ?
             customContextPathForCSSUrls : req.getContextPath();
-        int resourcesNotFound = this.processResources(contextPathForCss, outputStream, resourcesToMerge);
 
-        if (resourcesNotFound > 0 && resourcesNotFound == resourcesToMerge.size()) { //all resources not found
-            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
-            LOGGER.warn("All resources are not found. Sending 404.");
+        if (req.getParameter(PARAM_EXPIRE_CACHE) != null) {
+            LOGGER.trace("Removing all merged bundles from cache due to URL parameter.");
+            bundleStore.clear();
+        }
+
+        String mime = this.detectMime(url, resourcesToMerge);
+
+        //Single resource which needs no processing, let the container/channel send the file as is
+        File file = resourcesToMerge.size() == 1 ? resourceMerger.getFileToServeAsIs(resourcesToMerge.get(0)) : null;
+        if (file != null) {
+            long lastModified = getLastModifiedFor(resourcesToMerge, this.getServletContext());
+            PrecompressedVariant variant = usePrecompressed ? PrecompressedVariant.find(ResourceMetadataRegistry.getInstance(this.getServletContext()),
+                resourcesToMerge.get(0), req.getHeader(HTTP_ACCEPT_ENCODING_HEADER)) : null;
+            if (variant != null) {
+                LOGGER.trace("Serving precompressed variant {}", variant.getFile());
+                this.addContentEncodingHeaders(variant.getContentEncoding(), resp);
+                this.serveFile(req, resp, variant.getFile(), mime, withEncoding(status.getActualETag(), variant.getContentEncoding()), lastModified);
+            } else {
+                this.serveFile(req, resp, file, mime, status.getActualETag(), lastModified);
+            }
+            LOGGER.debug("Finished processing Request : {}", url);
             return;
         }
-        if (outputStream != null) {
-            try {
-                resp.setStatus(HttpServletResponse.SC_OK);
-                outputStream.close();
-            } catch (Exception e) {
-                // ignore
+
+        boolean cacheable = useCache && req.getParameter(PARAM_SKIP_CACHE) == null && req.getParameter(PARAM_DEBUG) == null;
+
+        //compressed copy of the bundle is kept on disk and is served as is to clients accepting gzip
+        boolean gzipVariant = usePrecompressed && cacheable && status.getActualETag() != null;
+        boolean gzipBundle = gzipVariant && PrecompressedVariant.isEncodingAccepted(req.getHeader(HTTP_ACCEPT_ENCODING_HEADER), CONTENT_ENCODING_GZIP);
+        String eTag = gzipBundle ? withEncoding(status.getActualETag(), CONTENT_ENCODING_GZIP) : status.getActualETag();
+
+        MergedBundle bundle = cacheable ? bundleStore.get(contextPathForCss, resourcesToMerge, status.getActualETag()) : null;
+
+        if (bundle == null) {
+            long lastModified = getLastModifiedFor(resourcesToMerge, this.getServletContext());
+
+            //Add appropriate headers
+            this.addAppropriateResponseHeaders(mime, eTag, lastModified, resp);
+
+            bundle = this.buildBundle(contextPathForCss, resourcesToMerge, mime, status.getActualETag(), lastModified);
+
+            if (bundle == null) { //all resources not found
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                LOGGER.warn("All resources are not found. Sending 404.");
+                return;
+            }
+
+            if (cacheable) {
+                bundleStore.put(contextPathForCss, resourcesToMerge, bundle);
+            }
+        } else {
+            LOGGER.trace("Serving merged bundle from cache.");
+            this.addAppropriateResponseHeaders(bundle.getContentType(), eTag, bundle.getLastModified(), resp);
+        }
+
+        if (gzipVariant) {
+            //sent uncompressed as well until the gzip file is written, or if gzip is not accepted
+            resp.addHeader(HTTP_VARY_HEADER, HTTP_ACCEPT_ENCODING_HEADER);
+        }
+        if (gzipBundle) {
+            File gzipFile = precompressedBundles.getGzipFile(contextPathForCss, resourcesToMerge, bundle);
+            if (gzipFile != null) {
+                resp.setHeader(HTTP_CONTENT_ENCODING_HEADER, CONTENT_ENCODING_GZIP);
+                this.sendFile(req, resp, gzipFile, bundle.getContentType(), eTag, bundle.getLastModified());
+                LOGGER.debug("Finished processing Request : {}", url);
+                return;
+            }
+            if (!this.turnOfETag) {
+                resp.setHeader(HTTP_ETAG_HEADER, bundle.getETag()); //falling back to uncompressed contents
             }
         }
+
+        this.sendBundle(req, resp, bundle);
         LOGGER.debug("Finished processing Request : {}", url);
     }
 
     /**
-     * @param response httpServletResponse
+     * Answers HEAD from resource metadata and cached bundle if any, contents are never merged for it.
+     * Content-Length is not known (and not sent) for bundles which are not cached yet.
+     *
+     * @see javax.servlet.http.HttpServlet#doHead(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
      */
-    private void sendNotModified(HttpServletResponse response) {
-        response.setContentLength(0);
-        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp)
+        throws ServletException, IOException {
+
+        String url = this.getURL(req);
+
+        List<String> resourcesToMerge = this.findResources(req.getContextPath(), url);
+
+        ResourceStatus status = this.isNotModified(req, resp, resourcesToMerge);
+        if (status.isNotModified()) {
+            this.sendNotModified(resp);
+            return;
+        }
+
+        if (status.getActualETag() == null) { //no metadata, only merging can tell
+            super.doHead(req, resp);
+            return;
+        }
+
+        String contextPathForCss = customContextPathForCSSUrls != null ?
+            customContextPathForCSSUrls : req.getContextPath();
+
+        String mime = this.detectMime(url, resourcesToMerge);
+
+        long lastModified = getLastModifiedFor(resourcesToMerge, this.getServletContext());
+
+        String eTag = status.getActualETag();
+
+        long length = -1;
+
+        File file = resourcesToMerge.size() == 1 ? resourceMerger.getFileToServeAsIs(resourcesToMerge.get(0)) : null;
+        if (file != null) {
+            ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(this.getServletContext());
+            PrecompressedVariant variant = usePrecompressed ? PrecompressedVariant.find(registry, resourcesToMerge.get(0), req.getHeader(HTTP_ACCEPT_ENCODING_HEADER)) : null;
+            if (variant != null) {
+                this.addContentEncodingHeaders(variant.getContentEncoding(), resp);
+                eTag = withEncoding(eTag, variant.getContentEncoding());
+                length = variant.getLength();
+            } else {
+                ResourceMetadata metadata = registry.get(resourcesToMerge.get(0));
+                length = metadata != null ? metadata.getLength() : file.length();
+            }
+        } else {
+            MergedBundle bundle = useCache ? bundleStore.get(contextPathForCss, resourcesToMerge, eTag) : null;
+            if (usePrecompressed && useCache) {
+                resp.addHeader(HTTP_VARY_HEADER, HTTP_ACCEPT_ENCODING_HEADER); //as GET would
+            }
+            if (bundle != null) {
+                length = bundle.getContentLength();
+                File gzipFile = usePrecompressed && PrecompressedVariant.isEncodingAccepted(req.getHeader(HTTP_ACCEPT_ENCODING_HEADER), CONTENT_ENCODING_GZIP) ?
+                    precompressedBundles.getGzipFile(contextPathForCss, resourcesToMerge, bundle) : null;
+                if (gzipFile != null) {
+                    resp.setHeader(HTTP_CONTENT_ENCODING_HEADER, CONTENT_ENCODING_GZIP);
+                    eTag = withEncoding(eTag, CONTENT_ENCODING_GZIP);
+                    length = gzipFile.length();
+                }
+            }
+        }
+
+        this.addAppropriateResponseHeaders(mime, eTag, lastModified, resp);
+        resp.setHeader(HTTP_ACCEPT_RANGES_HEADER, RANGE_UNIT_BYTES);
+        if (length >= 0) {
+            this.setContentLength(resp, length);
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
     }
 
     /**
-     * @param request HttpServletRequest
-     * @return URL with fingerprint removed if had any
+     * @param url              - request URI
+     * @param resourcesToMerge - list of resources
+     * @return content type of the response
      */
-    private String getURL(HttpServletRequest request) {
-        return removeFingerPrint(request.getRequestURI());
+    private String detectMime(String url, List<String> resourcesToMerge) {
+        String extensionOrPath = detectExtension(url);//in case of non js/css files it null
+        if (extensionOrPath == null) {
+            extensionOrPath = resourcesToMerge.get(0);//non grouped i.e. non css/js file, we refer it's path in that case
+        }
+        return selectMimeForExtension(extensionOrPath, this.getServletContext());
     }
 
     /**
-     * @param request          - HttpServletRequest
-     * @param response         - HttpServletResponse
-     * @param resourcesToMerge - list of resources relative paths
-     * @return true if not modified based on if-None-Match and If-Modified-Since
+     * @param contextPath - context path of the request
+     * @param url         - request URI with fingerprint removed
+     * @return resources of the named bundle if URL is of one, resources from the comma separated URL otherwise
      */
-    private ResourceStatus isNotModified(HttpServletRequest request, HttpServletResponse response, List<String> resourcesToMerge) {
-        ServletContext context = this.getServletContext();
-        //If-Modified-Since
-        String ifModifiedSince = request.getHeader(HTTP_IF_MODIFIED_SINCE);
-        if (ifModifiedSince != null) {
-            Date date = readDateFromHeader(ifModifiedSince);
-            if (date != null) {
-                if (!isAnyResourceModifiedSince(resourcesToMerge, date.getTime(), context)) {
-                    this.sendNotModified(response);
-                    return new ResourceStatus(null, true);
-                }
+    private List<String> findResources(String contextPath, String url) {
+        if (bundleManifest != null) {
+            List<String> resources = bundleManifest.getResources(url.startsWith(contextPath) ? url.substring(contextPath.length()) : url);
+            if (resources != null) {
+                return resources;
             }
         }
-        //If-None-match
-        String requestETag = request.getHeader(HTTP_IF_NONE_MATCH_HEADER);
-        String actualETag = this.turnOfETag ? null : buildETagForResources(resourcesToMerge, context);
-        if (!this.turnOfETag && !isAnyResourceETagModified(resourcesToMerge, requestETag, actualETag, context)) {
-            return new ResourceStatus(actualETag, true);
-        }
-        return new ResourceStatus(actualETag, false);
+        return findResourcesToMerge(contextPath, url, getServletContext());
     }
 
     /**
-     * @param contextPath      HttpServletRequest context path
-     * @param outputStream     - OutputStream
-     * @param resourcesToMerge list of resources to merge
-     * @return number of non existing, unprocessed resources
+     * @param contextPathForCss - context path for CSS URLs
+     * @param resourcesToMerge  - list of resources to merge
+     * @param mime              - content type
+     * @param eTag              - ETag of the resources
+     * @param lastModified      - last modified time of the resources
+     * @return merged bundle, null if none of the resources is found
      */
+    private MergedBundle buildBundle(String contextPathForCss, List<String> resourcesToMerge, String mime, String eTag, long lastModified) {
+        ByteArrayOutputStream mergedContents = new ByteArrayOutputStream();
+        int resourcesNotFound = resourceMerger.merge(contextPathForCss, mergedContents, resourcesToMerge);
+        if (resourcesNotFound > 0 && resourcesNotFound == resourcesToMerge.size()) {
+            return null;
+        }
+        return new MergedBundle(mergedContents.toByteArray(), mime, eTag, lastModified);
+    }
 
-    private int processResources(String contextPath, OutputStream outputStream, List<String> resourcesToMerge) {
-
-        int resourcesNotFound = 0;
-
+    /**
+     * Computes ETag and fingerprints of the resources and builds the bundle in to the cache (when context path is known).
+     *
+     * @param contextPathForCss - context path for CSS URLs, null if not known
+     * @param resourcesToMerge  - list of resources to merge
+     */
+    private void warmUpBundle(String contextPathForCss, List<String> resourcesToMerge) {
         ServletContext context = this.getServletContext();
+        String eTag = buildETagForResources(resourcesToMerge, context);
+        if (resourcesToMerge.size() == 1 && resourceMerger.getFileToServeAsIs(resourcesToMerge.get(0)) != null) {
+            return; //served as is, nothing more to prepare
+        }
+        if (!useCache || eTag == null || contextPathForCss == null) {
+            resourceMerger.merge(contextPathForCss != null ? contextPathForCss : "", new ByteArrayOutputStream(), resourcesToMerge);
+            return;
+        }
+        String extensionOrPath = detectExtension(resourcesToMerge.get(0));
+        String mime = selectMimeForExtension(extensionOrPath != null ? extensionOrPath : resourcesToMerge.get(0), context);
+        MergedBundle bundle = this.buildBundle(contextPathForCss, resourcesToMerge, mime, eTag, getLastModifiedFor(resourcesToMerge, context));
+        if (bundle == null) {
+            LOGGER.warn("Nothing to warm up, resources not found: {}", resourcesToMerge);
+            return;
+        }
+        bundleStore.put(contextPathForCss, resourcesToMerge, bundle);
+        if (usePrecompressed) {
+            precompressedBundles.writeGzipFile(contextPathForCss, resourcesToMerge, bundle);
+        }
+        LOGGER.trace("Warmed up bundle {}", resourcesToMerge);
+    }
 
-        for (String resourcePath : resourcesToMerge) {
-
-            LOGGER.trace("Processing resource : {}", resourcePath);
-
-            InputStream is = null;
-
-            try {
-                is = context.getResourceAsStream(resourcePath);
-                if (is == null) {
-                    resourcesNotFound++;
-                    continue;
-                }
-                if (resourcePath.endsWith(EXT_CSS) && autoCorrectUrlsInCSS) { //Need to deal with images url in CSS
-
-                    this.processCSS(contextPath, resourcePath, is, outputStream);
+    /**
+     * Sends single unprocessed resource using container sendfile if supported, copying it from the file otherwise.
+     *
+     * @param req          - request object
+     * @param resp         - response object
+     * @param file         - file to be served
+     * @param mime         - content type
+     * @param hashForETag  - ETag of the file
+     * @param lastModified - last modified time of the resource
+     * @throws IOException - if write fails
+     */
+    private void serveFile(HttpServletRequest req, HttpServletResponse resp, File file, String mime, String hashForETag, long lastModified) throws IOException {
+        this.addAppropriateResponseHeaders(mime, hashForETag, lastModified, resp);
+        this.sendFile(req, resp, file, mime, hashForETag, lastModified);
+    }
 
-                } else {
-                    byte[] buffer = new byte[128];
-                    int c;
-                    while ((c = is.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, c);
-                    }
+    /**
+     * Sends the file, or requested ranges of it, as response body. Headers other than Content-Length must already be set.
+     *
+     * @param req          - request object
+     * @param resp         - response object
+     * @param file         - file to be served
+     * @param mime         - content type
+     * @param eTag         - ETag of the file as sent
+     * @param lastModified - last modified time as sent
+     * @throws IOException - if write fails
+     */
+    private void sendFile(HttpServletRequest req, HttpServletResponse resp, final File file, String mime, String eTag, long lastModified) throws IOException {
+        ByteRanges ranges = this.prepareBody(req, resp, file.length(), mime, eTag, lastModified);
+        if (ranges != null && !ranges.isSatisfiable()) {
+            return;
+        }
+        long start = ranges != null ? ranges.getFirst() : 0;
+        long count = ranges != null ? ranges.getCount() : file.length();
+        if ((ranges == null || ranges.isSingle()) && FileTransfer.sendFile(req, resp, file, start, start + count)) {
+            return;
+        }
+        OutputStream outputStream = resp.getOutputStream();
+        if (ranges == null || ranges.isSingle()) {
+            FileTransfer.transfer(file, start, count, outputStream);
+        } else {
+            ranges.writeMultipart(outputStream, mime, new ByteRanges.Contents() {
+                @Override
+                public void write(OutputStream outputStream, long start, long count) throws IOException {
+                    FileTransfer.transfer(file, start, count, outputStream);
                 }
-            } catch (IOException e) {
-                LOGGER.error("Error while reading resource : {}", resourcePath);
-                LOGGER.error("IOException: ", e);
-            }
+            });
+        }
+        try {
+            outputStream.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
 
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException ex) {
-                    LOGGER.warn("Failed to close stream:", ex);
-                }
-                try {
-                    outputStream.flush();
-                } catch (IOException ex) {
-                    LOGGER.error("Failed to flush out: {}", outputStream);
+    /**
+     * Sends merged bundle, or requested ranges of it, as response body. Headers other than Content-Length must already be set.
+     *
+     * @param req    - request object
+     * @param resp   - response object
+     * @param bundle - merged bundle to be served
+     * @throws IOException - if write fails
+     */
+    private void sendBundle(HttpServletRequest req, HttpServletResponse resp, final MergedBundle bundle) throws IOException {
+        ByteRanges ranges = this.prepareBody(req, resp, bundle.getContentLength(), bundle.getContentType(), bundle.getETag(), bundle.getLastModified());
+        if (ranges != null && !ranges.isSatisfiable()) {
+            return;
+        }
+        OutputStream outputStream = resp.getOutputStream();
+        if (ranges == null) {
+            bundle.writeTo(outputStream);
+        } else if (ranges.isSingle()) {
+            bundle.writeTo(outputStream, (int) ranges.getFirst(), (int) ranges.getCount());
+        } else {
+            ranges.writeMultipart(outputStream, bundle.getContentType(), new ByteRanges.Contents() {
+                @Override
+                public void write(OutputStream outputStream, long start, long count) throws IOException {
+                    bundle.writeTo(outputStream, (int) start, (int) count);
                 }
-            }
+            });
+        }
+        try {
+            outputStream.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
 
+    /**
+     * Sets status, Content-Length and range headers according to the Range request if any.
+     *
+     * @param req          - request object
+     * @param resp         - response object
+     * @param length       - length of the whole contents
+     * @param mime         - content type of the contents
+     * @param eTag         - ETag of the contents as sent, to validate If-Range
+     * @param lastModified - last modified time of the contents, to validate If-Range
+     * @return ranges to be sent (416 is already set if not satisfiable), null if whole contents are to be sent
+     */
+    private ByteRanges prepareBody(HttpServletRequest req, HttpServletResponse resp, long length, String mime, String eTag, long lastModified) {
+        resp.setHeader(HTTP_ACCEPT_RANGES_HEADER, RANGE_UNIT_BYTES);
+        ByteRanges ranges = ByteRanges.of(req, length, eTag, lastModified);
+        if (ranges == null) {
+            this.setContentLength(resp, length);
+            resp.setStatus(HttpServletResponse.SC_OK);
+        } else if (!ranges.isSatisfiable()) {
+            LOGGER.trace("Requested range not satisfiable. Sending 416.");
+            resp.setHeader(HTTP_CONTENT_RANGE_HEADER, ranges.getContentRange());
+            resp.setContentLength(0);
+            resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        } else if (ranges.isSingle()) {
+            resp.setHeader(HTTP_CONTENT_RANGE_HEADER, ranges.getContentRange());
+            this.setContentLength(resp, ranges.getCount());
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        } else {
+            resp.setContentType(ranges.getMultipartContentType());
+            this.setContentLength(resp, ranges.getMultipartLength(mime));
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
         }
-        return resourcesNotFound;
+        return ranges;
     }
 
     /**
-     * @param cssFilePath  - css file path
-     * @param contextPath  - context path or custom configured context path
-     * @param inputStream  - input stream
-     * @param outputStream - output stream
-     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     * @param resp   - response object
+     * @param length - content length, may exceed int
      */
-    private void processCSS(String contextPath, String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
-        ServletContext context = this.getServletContext();
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        StringBuffer buffer = new StringBuffer();
-        while ((line = bufferedReader.readLine()) != null) {
-            buffer.setLength(0);
-            buffer.append(line);
-            line = this.processCSSLine(context, contextPath, cssFilePath, buffer);
-            outputStream.write((line + "\n").getBytes());
+    private void setContentLength(HttpServletResponse resp, long length) {
+        if (length <= Integer.MAX_VALUE) {
+            resp.setContentLength((int) length);
+        } else {
+            resp.setHeader(HTTP_CONTENT_LENGTH_HEADER, String.valueOf(length));
         }
     }
 
     /**
-     * @param context     - ServletContext
-     * @param contextPath - APP context path or any custom configured context path
-     * @param cssFilePath - css file path
-     * @param line        - single line css file
-     * @return - processed line with img path if it had any replaced to appropriate path
+     * @param contentEncoding - encoding of the precompressed contents being served
+     * @param resp            - response object
      */
-    private String processCSSLine(ServletContext context, String contextPath, String cssFilePath, StringBuffer line) {
-        Matcher matcher = CSS_IMG_URL_PATTERN.matcher(line);
-        String cssRealPath = context.getRealPath(cssFilePath);
-        while (matcher.find()) {
-            String refImgPath = matcher.group(1);
-            if (!isProtocolURL(refImgPath)) { //ignore absolute protocol paths
-                String resolvedImgPath = refImgPath;
-                if (!refImgPath.startsWith("/")) {
-                    resolvedImgPath = buildProperPath(getParentPath(cssFilePath), refImgPath);
-                }
-                String imgRealPath = context.getRealPath(resolvedImgPath);
-                int offset = line.indexOf(refImgPath);
-                line.replace(
-                    offset, //from
-                    offset + refImgPath.length(), //to
-                    contextPath + (this.turnOfUrlFingerPrinting ? resolvedImgPath : addFingerPrint(buildETagForResource(resolvedImgPath, context), resolvedImgPath))
-                );
-
-                updateReferenceMap(cssRealPath, imgRealPath);
-            }
+    private void addContentEncodingHeaders(String contentEncoding, HttpServletResponse resp) {
+        resp.setHeader(HTTP_CONTENT_ENCODING_HEADER, contentEncoding);
+        resp.addHeader(HTTP_VARY_HEADER, HTTP_ACCEPT_ENCODING_HEADER);
+    }
+
+    /**
+     * @param eTag            - ETag of the uncompressed contents
+     * @param contentEncoding - encoding of the contents being served
+     * @return ETag distinguishing the encoded variant, same way as <code>CompressionFilter</code> does
+     */
+    private static String withEncoding(String eTag, String contentEncoding) {
+        return eTag != null ? eTag + '-' + contentEncoding : null;
+    }
+
+    /**
+     * @param response httpServletResponse
+     */
+    private void sendNotModified(HttpServletResponse response) {
+        response.setContentLength(0);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    /**
+     * @param request HttpServletRequest
+     * @return URL with fingerprint removed if had any
+     */
+    private String getURL(HttpServletRequest request) {
+        return removeFingerPrint(request.getRequestURI());
+    }
+
+    /**
+     * @param request          - HttpServletRequest
+     * @param response         - HttpServletResponse
+     * @param resourcesToMerge - list of resources relative paths
+     * @return true if not modified based on if-None-Match and If-Modified-Since
+     */
+    private ResourceStatus isNotModified(HttpServletRequest request, HttpServletResponse response, List<String> resourcesToMerge) {
+        ServletContext context = this.getServletContext();
+        //If-Modified-Since
+        long ifModifiedSince = HttpDateCodec.parse(request.getHeader(HTTP_IF_MODIFIED_SINCE));
+        if (ifModifiedSince != HttpDateCodec.INVALID && !isAnyResourceModifiedSinceHttpDate(resourcesToMerge, ifModifiedSince, context)) {
+            this.sendNotModified(response);
+            return new ResourceStatus(null, true);
         }
-        return line.toString();
+        //If-None-match
+        String requestETag = request.getHeader(HTTP_IF_NONE_MATCH_HEADER);
+        String actualETag = buildETagForResources(resourcesToMerge, context); //needed to validate cached bundle even if turned off
+        if (!this.turnOfETag && !isAnyResourceETagModified(resourcesToMerge, requestETag, actualETag, context)) {
+            return new ResourceStatus(actualETag, true);
+        }
+        return new ResourceStatus(actualETag, false);
     }
 
     /**
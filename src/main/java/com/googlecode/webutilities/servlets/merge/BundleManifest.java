@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.servlets.merge;
+
+import static com.googlecode.webutilities.util.Utils.buildETagForResources;
+import static com.googlecode.webutilities.util.Utils.detectExtension;
+import static com.googlecode.webutilities.util.Utils.findResourcesToMerge;
+import static com.googlecode.webutilities.util.Utils.hexDigestString;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named bundles read from a manifest (properties file) in the webapp, eg. <code>/WEB-INF/bundles.properties</code>
+ * <pre>
+ * app.js = /js/prototype.js, /js/controls.js, /lib/jquery/jquery.js, /app/main.js
+ * app.css = /css/infra.css, /theme/aqua/calendar.css
+ * </pre>
+ * Unlike comma URLs, members of a named bundle can be from any directory. Members are resolved once when the manifest
+ * is loaded and bundles are requested by short hashed URLs like <code>/bundle/app-3f9c0a1b.js</code>, the hash
+ * changes as soon as any of the members changes. Hash in the requested URL is not validated, current contents are
+ * always served.
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class BundleManifest {
+
+    public static final String BUNDLE_PATH = "/bundle/";
+
+    private static final String CONTEXT_ATTR = BundleManifest.class.getName();
+
+    private static final int HASH_LENGTH = 8;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleManifest.class.getName());
+
+    private final Map<String, List<String>> bundles;
+
+    private BundleManifest(Map<String, List<String>> bundles) {
+        this.bundles = bundles;
+    }
+
+    /**
+     * Loads the manifest and makes it available to others (eg. URL tag) through {@link #getInstance(ServletContext)}.
+     *
+     * @param context      - servlet context
+     * @param manifestPath - context relative path of the manifest
+     * @return loaded manifest, null if not found or not readable
+     */
+    public static BundleManifest load(ServletContext context, String manifestPath) {
+        InputStream is = context.getResourceAsStream(manifestPath);
+        if (is == null) {
+            LOGGER.warn("Bundle manifest not found: {}", manifestPath);
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            properties.load(is);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read bundle manifest: " + manifestPath, e);
+            return null;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        Map<String, List<String>> bundles = new HashMap<String, List<String>>();
+        for (String name : properties.stringPropertyNames()) {
+            if (detectExtension(name) == null || name.indexOf('/') >= 0) {
+                LOGGER.warn("Ignoring bundle {}, name must end with .js, .json or .css and have no /", name);
+                continue;
+            }
+            List<String> resources = new ArrayList<String>();
+            for (String member : properties.getProperty(name).trim().split("[,\\s]+")) {
+                if (member.length() == 0) continue;
+                for (String resource : findResourcesToMerge("", member.startsWith("/") ? member : "/" + member)) {
+                    if (!resources.contains(resource)) {
+                        resources.add(resource);
+                    }
+                }
+            }
+            if (resources.isEmpty()) {
+                LOGGER.warn("Ignoring empty bundle {}", name);
+                continue;
+            }
+            bundles.put(name, Collections.unmodifiableList(resources));
+            LOGGER.debug("Bundle {}: {}", name, resources);
+        }
+        BundleManifest manifest = new BundleManifest(bundles);
+        context.setAttribute(CONTEXT_ATTR, manifest);
+        return manifest;
+    }
+
+    /**
+     * @param context - servlet context
+     * @return manifest loaded for the context, null if none
+     */
+    public static BundleManifest getInstance(ServletContext context) {
+        Object manifest = context.getAttribute(CONTEXT_ATTR);
+        return manifest instanceof BundleManifest ? (BundleManifest) manifest : null;
+    }
+
+    /**
+     * @return names of the bundles
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(bundles.keySet());
+    }
+
+    /**
+     * @param name - bundle name eg. app.js
+     * @return true if manifest has the bundle
+     */
+    public boolean contains(String name) {
+        return bundles.containsKey(name);
+    }
+
+    /**
+     * @param path - request path relative to the context eg. /bundle/app-3f9c0a1b.js or /bundle/app.js
+     * @return resources of the requested bundle, null if path is not of a bundle in this manifest
+     */
+    public List<String> getResources(String path) {
+        if (!path.startsWith(BUNDLE_PATH)) return null;
+        String fileName = path.substring(BUNDLE_PATH.length());
+        List<String> resources = bundles.get(fileName);
+        if (resources != null) return resources;
+        int dot = fileName.lastIndexOf('.');
+        int dash = dot > 0 ? fileName.lastIndexOf('-', dot) : -1;
+        if (dash > 0 && dot - dash - 1 == HASH_LENGTH) {
+            resources = bundles.get(fileName.substring(0, dash) + fileName.substring(dot));
+        }
+        return resources;
+    }
+
+    /**
+     * @param name    - bundle name eg. app.js
+     * @param context - servlet context
+     * @return context relative hashed URL of the bundle eg. /bundle/app-3f9c0a1b.js, null if no such bundle
+     */
+    public String getURL(String name, ServletContext context) {
+        List<String> resources = bundles.get(name);
+        if (resources == null) return null;
+        String eTag = buildETagForResources(resources, context);
+        if (eTag == null) {
+            return BUNDLE_PATH + name; //none of the members found
+        }
+        int dot = name.lastIndexOf('.');
+        return BUNDLE_PATH + name.substring(0, dot) + '-' + hexDigestString(eTag.getBytes()).substring(0, HASH_LENGTH) + name.substring(dot);
+    }
+
+}
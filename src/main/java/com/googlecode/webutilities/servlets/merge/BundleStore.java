@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.servlets.merge;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory store of merged bundles.
+ * <p>
+ * Bundles are keyed by the normalized list of resources (as returned by <code>Utils.findResourcesToMerge</code>)
+ * and the context path used for rewriting CSS URLs. A stored bundle is only returned when its ETag matches the
+ * current combined ETag of the resources, so a modified resource always causes the bundle to be rebuilt.
+ * </p>
+ * <p>
+ * Least recently used bundles are dropped once <code>maxEntries</code> bundles are held.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ * @see MergedBundle
+ */
+public class BundleStore {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final Map<String, MergedBundle> bundles;
+
+    public BundleStore() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public BundleStore(final int maxEntries) {
+        this.bundles = Collections.synchronizedMap(new LinkedHashMap<String, MergedBundle>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MergedBundle> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * @param contextPath - context path used for rewriting URLs in CSS
+     * @param resources   - normalized list of resources
+     * @param eTag        - current combined ETag of the resources
+     * @return stored bundle if present and still valid for the given ETag, null otherwise
+     */
+    public MergedBundle get(String contextPath, List<String> resources, String eTag) {
+        if (eTag == null) return null;
+        MergedBundle bundle = bundles.get(keyFor(contextPath, resources));
+        return bundle != null && eTag.equals(bundle.getETag()) ? bundle : null;
+    }
+
+    /**
+     * @param contextPath - context path used for rewriting URLs in CSS
+     * @param resources   - normalized list of resources
+     * @param bundle      - merged bundle (not stored if it has no ETag to validate against)
+     */
+    public void put(String contextPath, List<String> resources, MergedBundle bundle) {
+        if (bundle.getETag() == null) return;
+        bundles.put(keyFor(contextPath, resources), bundle);
+    }
+
+    public void clear() {
+        bundles.clear();
+    }
+
+    public int size() {
+        return bundles.size();
+    }
+
+    static String keyFor(String contextPath, List<String> resources) {
+        StringBuilder key = new StringBuilder(contextPath == null ? "" : contextPath);
+        for (String resource : resources) {
+            key.append(',').append(resource);
+        }
+        return key.toString();
+    }
+
+}
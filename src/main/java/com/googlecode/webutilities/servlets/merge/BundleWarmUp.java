@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.servlets.merge;
+
+import static com.googlecode.webutilities.common.Constants.EXT_CSS;
+import static com.googlecode.webutilities.common.Constants.EXT_JS;
+import static com.googlecode.webutilities.util.Utils.findResourcesToMerge;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up merged bundles in background right after startup, so that first requests after a deploy do not all pay
+ * the cost of reading, merging and fingerprinting at once.
+ * <p>
+ * Bundles to warm up are given as a list separated by white spaces or <code>;</code>. Each entry is either a bundle
+ * URL relative to the context (eg. <code>/js/prototype,controls,myapp.js</code>) or a directory ending with
+ * <code>/</code> (eg. <code>/css/</code>), in which case every JS and CSS file under it is warmed up on its own.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class BundleWarmUp {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleWarmUp.class.getName());
+
+    /**
+     * Does the actual work for one bundle
+     */
+    public interface Warmer {
+
+        /**
+         * @param resources - normalized list of resources of the bundle
+         * @throws Exception - if anything goes wrong, logged and warm up continues with next bundle
+         */
+        void warm(List<String> resources) throws Exception;
+
+    }
+
+    private final ExecutorService executor;
+
+    private BundleWarmUp(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param context - servlet context
+     * @param bundles - bundles to warm up
+     * @param warmer  - warmer to call for each bundle
+     * @return started warm up
+     */
+    public static BundleWarmUp start(ServletContext context, String bundles, final Warmer warmer) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, BundleWarmUp.class.getSimpleName());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        final List<List<String>> bundleResources = findBundles(context, bundles);
+        LOGGER.debug("Warming up {} bundles in background.", bundleResources.size());
+        for (final List<String> resources : bundleResources) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        warmer.warm(resources);
+                    } catch (Exception ex) {
+                        LOGGER.warn("Failed to warm up {}", resources, ex);
+                    }
+                }
+            });
+        }
+        executor.shutdown(); //thread goes away once done
+        return new BundleWarmUp(executor);
+    }
+
+    /**
+     * Abandons bundles not yet warmed up
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param context - servlet context
+     * @param bundles - bundles and directories to warm up
+     * @return list of normalized resources list, one per bundle
+     */
+    static List<List<String>> findBundles(ServletContext context, String bundles) {
+        List<List<String>> result = new ArrayList<List<String>>();
+        if (bundles == null) return result;
+        for (String entry : bundles.trim().split("[;\\s]+")) {
+            if (entry.length() == 0) continue;
+            if (entry.endsWith("/")) {
+                Set<String> files = new TreeSet<String>();
+                findFiles(context, entry, files);
+                for (String file : files) {
+                    List<String> single = new ArrayList<String>(1);
+                    single.add(file);
+                    result.add(single);
+                }
+            } else {
+                result.add(findResourcesToMerge("", entry));
+            }
+        }
+        return result;
+    }
+
+    private static void findFiles(ServletContext context, String directory, Set<String> files) {
+        Set<?> paths = context.getResourcePaths(directory);
+        if (paths == null) return;
+        for (Object path : paths) {
+            String resource = String.valueOf(path);
+            if (resource.endsWith("/")) {
+                findFiles(context, resource, files);
+            } else if (resource.endsWith(EXT_JS) || resource.endsWith(EXT_CSS)) {
+                files.add(resource);
+            }
+        }
+    }
+
+    /**
+     * <code>ServletContext.getContextPath()</code> is available since Servlet 2.5 only, while the build compiles
+     * against servlet-api 2.4, so it is looked up by reflection. On a 2.4 container it does not exist and the
+     * documented fallback is null: the context path is then known from the first request only.
+     *
+     * @param context - servlet context
+     * @return context path if container supports it, null on a Servlet 2.4 container
+     * @throws IllegalStateException - if the container has the method but calling it fails
+     */
+    public static String getContextPath(ServletContext context) {
+        Method method;
+        try {
+            method = context.getClass().getMethod("getContextPath");
+        } catch (NoSuchMethodException ex) { //Servlet 2.4, the fallback
+            LOGGER.debug("Servlet 2.4 container, context path not available from servlet context.");
+            return null;
+        }
+        try {
+            return (String) method.invoke(context);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Unable to call ServletContext.getContextPath()", ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("ServletContext.getContextPath() failed", ex.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.servlets.merge;
+
+import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_RANGE_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_TYPE_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_IF_RANGE_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_RANGE_HEADER;
+import static com.googlecode.webutilities.common.Constants.RANGE_UNIT_BYTES;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.googlecode.webutilities.util.HttpDateCodec;
+
+/**
+ * Byte ranges requested using <code>Range</code> header (honouring <code>If-Range</code>) resolved against the length
+ * of the contents being served.
+ * <p>
+ * Requests with invalid <code>Range</code>, non matching <code>If-Range</code> or more than {@link #MAX_RANGES} ranges
+ * are served in full.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class ByteRanges {
+
+    public static final int MAX_RANGES = 16;
+
+    public static final String MULTIPART_BYTERANGES = "multipart/byteranges; boundary=";
+
+    private static final String BOUNDARY = "WEBUTILITIES_MIME_BOUNDARY";
+
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Contents from which ranges are written
+     */
+    public interface Contents {
+
+        /**
+         * @param outputStream - stream to write to (not closed)
+         * @param start        - position of the first byte to be written
+         * @param count        - number of bytes to be written
+         * @throws IOException - if read/write fails
+         */
+        void write(OutputStream outputStream, long start, long count) throws IOException;
+
+    }
+
+    private final long length;
+
+    private final List<long[]> ranges; //{first, last} both inclusive
+
+    private ByteRanges(long length, List<long[]> ranges) {
+        this.length = length;
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param request      - HttpServletRequest
+     * @param length       - length of the contents
+     * @param eTag         - ETag of the contents, null if none
+     * @param lastModified - last modified time of the contents
+     * @return requested ranges, null if whole contents are to be served
+     */
+    public static ByteRanges of(HttpServletRequest request, long length, String eTag, long lastModified) {
+        String range = request.getHeader(HTTP_RANGE_HEADER);
+        if (range == null) return null;
+        String ifRange = request.getHeader(HTTP_IF_RANGE_HEADER);
+        if (ifRange != null && !isIfRangeMatching(ifRange.trim(), eTag, lastModified)) return null;
+        return parse(range, length);
+    }
+
+    /**
+     * @param range  - value of Range header, eg. bytes=0-499,-500
+     * @param length - length of the contents
+     * @return ranges, null if header is invalid or has too many ranges
+     */
+    static ByteRanges parse(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith(RANGE_UNIT_BYTES + "=")) return null;
+        String[] specs = range.substring(RANGE_UNIT_BYTES.length() + 1).split(",");
+        if (specs.length > MAX_RANGES) return null;
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            long first;
+            long last;
+            try {
+                if (dash == 0) { //suffix, last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue; //unsatisfiable
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) return null;
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new long[]{first, last});
+            }
+        }
+        return new ByteRanges(length, ranges);
+    }
+
+    /**
+     * @param ifRange      - value of If-Range header, ETag or HTTP date
+     * @param eTag         - current ETag, null if none
+     * @param lastModified - current last modified time
+     * @return true if contents are still the same as validated by the client
+     */
+    private static boolean isIfRangeMatching(String ifRange, String eTag, long lastModified) {
+        if (ifRange.startsWith("W/")) return false; //weak validators are never enough for ranges
+        long date = ifRange.startsWith("\"") ? HttpDateCodec.INVALID : HttpDateCodec.parse(ifRange);
+        if (date != HttpDateCodec.INVALID) {
+            return date / 1000 == lastModified / 1000; //HTTP dates have second precision
+        }
+        return eTag != null && ifRange.replace("\"", "").equals(eTag);
+    }
+
+    /**
+     * @return false if none of the ranges can be served, 416 should be sent
+     */
+    public boolean isSatisfiable() {
+        return !ranges.isEmpty();
+    }
+
+    /**
+     * @return true if only one range is requested and can be sent as is with Content-Range header
+     */
+    public boolean isSingle() {
+        return ranges.size() == 1;
+    }
+
+    public long getFirst() {
+        return ranges.get(0)[0];
+    }
+
+    public long getCount() {
+        return ranges.get(0)[1] - ranges.get(0)[0] + 1;
+    }
+
+    /**
+     * @return Content-Range header value of the single range, or of unsatisfiable ranges
+     */
+    public String getContentRange() {
+        return isSatisfiable() ? contentRange(ranges.get(0)) : RANGE_UNIT_BYTES + " */" + length;
+    }
+
+    /**
+     * @return Content-Type header value for multiple ranges
+     */
+    public String getMultipartContentType() {
+        return MULTIPART_BYTERANGES + BOUNDARY;
+    }
+
+    /**
+     * @param contentType - content type of the contents
+     * @return length of the multipart/byteranges body
+     */
+    public long getMultipartLength(String contentType) {
+        long multipartLength = 0;
+        for (long[] range : ranges) {
+            multipartLength += bytes(partHeader(contentType, range)).length + range[1] - range[0] + 1;
+        }
+        return multipartLength + bytes(multipartEnd()).length;
+    }
+
+    /**
+     * @param outputStream - stream to write to (not closed)
+     * @param contentType  - content type of the contents
+     * @param contents     - contents from which ranges are written
+     * @throws IOException - if read/write fails
+     */
+    public void writeMultipart(OutputStream outputStream, String contentType, Contents contents) throws IOException {
+        for (long[] range : ranges) {
+            outputStream.write(bytes(partHeader(contentType, range)));
+            contents.write(outputStream, range[0], range[1] - range[0] + 1);
+        }
+        outputStream.write(bytes(multipartEnd()));
+    }
+
+    private String contentRange(long[] range) {
+        return RANGE_UNIT_BYTES + " " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    private String partHeader(String contentType, long[] range) {
+        StringBuilder header = new StringBuilder(CRLF).append("--").append(BOUNDARY).append(CRLF);
+        if (contentType != null) {
+            header.append(HTTP_CONTENT_TYPE_HEADER).append(": ").append(contentType).append(CRLF);
+        }
+        return header.append(HTTP_CONTENT_RANGE_HEADER).append(": ").append(contentRange(range)).append(CRLF).append(CRLF).toString();
+    }
+
+    private static String multipartEnd() {
+        return CRLF + "--" + BOUNDARY + "--" + CRLF;
+    }
+
+    private static byte[] bytes(String string) {
+        try {
+            return string.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); //every JVM supports ISO-8859-1
+        }
+    }
+
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.servlets.merge;
+
+import static com.googlecode.webutilities.common.Constants.DEFAULT_CHARSET;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Single pass streaming rewriter of <code>url(...)</code> references in a CSS file.
+ * <p>
+ * The CSS is read in chunks and scanned once, <code>url(...)</code> tokens are collected as they stream by and
+ * their value is replaced with the one returned by the <code>UrlResolver</code>. Everything else is copied as is
+ * (line endings are normalized to <code>\n</code> and the output ends with a new line, same as earlier line based
+ * processing).
+ * </p>
+ * <p>
+ * Files with a UTF-16 byte order mark are decoded and encoded back in that charset. Any other file is passed through
+ * byte by byte (as ISO-8859-1) so that ASCII compatible encodings are never corrupted, whether declared or not.
+ * URL values are converted using the <code>@charset</code> declared in the file (UTF-8 if none) before they are
+ * given to the resolver.
+ * </p>
+ * <p>
+ * An instance keeps the state of one file being processed, hence it is not thread safe.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class CssUrlRewriter {
+
+    /**
+     * Resolves the URL found in CSS to the one to be written
+     */
+    public interface UrlResolver {
+
+        /**
+         * @param url - URL as found in the CSS (without quotes)
+         * @return URL to replace it with, null to keep it as is
+         */
+        String resolve(String url);
+
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Longer url(...) values (eg. inlined data URIs) are copied without trying to resolve them
+     */
+    private static final int MAX_TOKEN_LENGTH = 2048;
+
+    private static final String PASS_THROUGH_CHARSET = "ISO-8859-1";
+
+    private static final String CHARSET_RULE = "@charset \"";
+
+    private static final int TEXT = 0, U = 1, R = 2, L = 3, OPEN = 4, QUOTED = 5, UNQUOTED = 6, CLOSE = 7;
+
+    private final UrlResolver resolver;
+
+    private int state = TEXT;
+
+    private final StringBuilder token = new StringBuilder();
+
+    /**
+     * Chars of aborted tokens to be scanned again, as a stack: the last one is scanned first
+     */
+    private final StringBuilder rescan = new StringBuilder();
+
+    private int valueStart;
+
+    private int valueEnd;
+
+    private char quote;
+
+    private final char[] output = new char[BUFFER_SIZE];
+
+    private int outputPosition;
+
+    private Writer writer;
+
+    private boolean passThrough;
+
+    private Charset urlCharset;
+
+    private boolean lastWasCR;
+
+    private char lastWritten = '\n';
+
+    private boolean written;
+
+    public CssUrlRewriter(UrlResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @param inputStream  - CSS contents
+     * @param outputStream - stream to write rewritten CSS to (flushed but not closed)
+     * @throws IOException - if read/write fails
+     */
+    public void rewrite(InputStream inputStream, OutputStream outputStream) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(inputStream, 2);
+        String charset = detectCharset(in);
+        passThrough = PASS_THROUGH_CHARSET.equals(charset);
+        urlCharset = passThrough ? null : Charset.forName(charset);
+        Reader reader = new InputStreamReader(in, charset);
+        writer = new OutputStreamWriter(outputStream, charset);
+        char[] input = new char[BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(input)) != -1) {
+            if (urlCharset == null) {
+                urlCharset = declaredCharset(input, read);
+            }
+            for (int i = 0; i < read; i++) {
+                consume(input[i]);
+            }
+        }
+        if (state != TEXT) {
+            writeToken(); //unterminated url(
+        }
+        if (written && lastWritten != '\n') {
+            write('\n');
+        }
+        flushOutput();
+        writer.flush();
+    }
+
+    private void consume(char c) throws IOException {
+        scan(c);
+        for (int last = rescan.length() - 1; last >= 0; last = rescan.length() - 1) {
+            char next = rescan.charAt(last);
+            rescan.setLength(last);
+            scan(next);
+        }
+    }
+
+    private void scan(char c) throws IOException {
+        switch (state) {
+            case TEXT:
+                if (c == 'u' || c == 'U') {
+                    token.setLength(0);
+                    token.append(c);
+                    state = U;
+                } else {
+                    write(c);
+                }
+                break;
+            case U:
+                accept(c == 'r' || c == 'R', R, c);
+                break;
+            case R:
+                accept(c == 'l' || c == 'L', L, c);
+                break;
+            case L:
+                if (isBlank(c)) {
+                    token.append(c);
+                } else {
+                    accept(c == '(', OPEN, c);
+                }
+                break;
+            case OPEN:
+                if (isBlank(c)) {
+                    token.append(c);
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                    token.append(c);
+                    valueStart = token.length();
+                    state = QUOTED;
+                } else if (c == ')' || c == '(' || isNewLine(c)) {
+                    abort(c);
+                } else {
+                    quote = 0;
+                    valueStart = token.length();
+                    token.append(c);
+                    state = UNQUOTED;
+                }
+                break;
+            case QUOTED:
+                if (c == quote) {
+                    valueEnd = token.length();
+                    token.append(c);
+                    state = CLOSE;
+                } else if (isNewLine(c)) {
+                    abort(c);
+                } else {
+                    append(c);
+                }
+                break;
+            case UNQUOTED:
+                if (c == ')') {
+                    valueEnd = token.length();
+                    while (valueEnd > valueStart && isBlank(token.charAt(valueEnd - 1))) {
+                        valueEnd--;
+                    }
+                    complete(c);
+                } else if (c == '"' || c == '\'' || c == '(' || isNewLine(c)) {
+                    abort(c);
+                } else {
+                    append(c);
+                }
+                break;
+            case CLOSE:
+                if (isBlank(c)) {
+                    token.append(c);
+                } else if (c == ')') {
+                    complete(c);
+                } else {
+                    abort(c);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown state " + state);
+        }
+    }
+
+    private void accept(boolean expected, int nextState, char c) throws IOException {
+        if (expected) {
+            token.append(c);
+            state = nextState;
+        } else {
+            abort(c);
+        }
+    }
+
+    private void append(char c) throws IOException {
+        token.append(c);
+        if (token.length() > MAX_TOKEN_LENGTH) {
+            writeToken();
+        }
+    }
+
+    /**
+     * Not a url(...) token after all, copy it up to the next char that could start another one and queue the rest to
+     * be scanned again, ahead of the chars still queued, by the loop in <code>consume</code>
+     */
+    private void abort(char c) throws IOException {
+        state = TEXT;
+        int restart = 1;
+        while (restart < token.length() && token.charAt(restart) != 'u' && token.charAt(restart) != 'U') {
+            restart++;
+        }
+        for (int i = 0; i < restart; i++) {
+            write(token.charAt(i));
+        }
+        rescan.append(c);
+        for (int i = token.length() - 1; i >= restart; i--) {
+            rescan.append(token.charAt(i));
+        }
+        token.setLength(0);
+    }
+
+    private void complete(char c) throws IOException {
+        token.append(c);
+        String url = token.substring(valueStart, valueEnd);
+        String resolved = url.length() > 0 ? resolver.resolve(toResolverCharset(url)) : null;
+        if (resolved != null) {
+            token.replace(valueStart, valueEnd, fromResolverCharset(resolved));
+        }
+        writeToken();
+    }
+
+    private void writeToken() throws IOException {
+        state = TEXT;
+        for (int i = 0; i < token.length(); i++) {
+            write(token.charAt(i));
+        }
+        token.setLength(0);
+    }
+
+    private void write(char c) throws IOException {
+        if (c == '\r') {
+            lastWasCR = true;
+            c = '\n';
+        } else if (c == '\n' && lastWasCR) {
+            lastWasCR = false;
+            return;
+        } else {
+            lastWasCR = false;
+        }
+        if (outputPosition == output.length) {
+            flushOutput();
+        }
+        output[outputPosition++] = c;
+        lastWritten = c;
+        written = true;
+    }
+
+    private void flushOutput() throws IOException {
+        writer.write(output, 0, outputPosition);
+        outputPosition = 0;
+    }
+
+    private String toResolverCharset(String url) throws UnsupportedEncodingException {
+        return passThrough ? new String(url.getBytes(PASS_THROUGH_CHARSET), urlCharset.name()) : url;
+    }
+
+    private String fromResolverCharset(String url) throws UnsupportedEncodingException {
+        return passThrough ? new String(url.getBytes(urlCharset.name()), PASS_THROUGH_CHARSET) : url;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isNewLine(char c) {
+        return c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * @param in - stream to look for byte order mark in
+     * @return UTF-16 variant if stream starts with its BOM, pass through charset otherwise
+     * @throws IOException - if read fails
+     */
+    private static String detectCharset(PushbackInputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) return PASS_THROUGH_CHARSET;
+        int second = in.read();
+        if (second != -1) {
+            in.unread(second);
+        }
+        in.unread(first);
+        if (first == 0xFE && second == 0xFF) return "UTF-16BE";
+        if (first == 0xFF && second == 0xFE) return "UTF-16LE";
+        return PASS_THROUGH_CHARSET;
+    }
+
+    /**
+     * @param chars  - beginning of the CSS
+     * @param length - number of chars read
+     * @return charset from <code>@charset "...";</code> rule if CSS starts with one, UTF-8 otherwise
+     */
+    private static Charset declaredCharset(char[] chars, int length) {
+        String start = new String(chars, 0, Math.min(length, 64));
+        if (start.startsWith(CHARSET_RULE)) {
+            int end = start.indexOf('"', CHARSET_RULE.length());
+            if (end > 0) {
+                String name = start.substring(CHARSET_RULE.length(), end);
+                try {
+                    if (Charset.isSupported(name)) {
+                        return Charset.forName(name);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    //illegal charset name, ignore
+                }
+            }
+        }
+        return Charset.forName(DEFAULT_CHARSET);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.servlets.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helpers to send files with as little copying as the container allows.
+ * <p>
+ * If the container offers a sendfile hook (Tomcat's <code>org.apache.tomcat.sendfile.*</code> request attributes)
+ * the file is handed over to the container, which sends it without copying it through the JVM. Otherwise it is copied
+ * to the response stream through a buffer reused by the calling thread: a <code>ServletOutputStream</code> has no
+ * channel <code>FileChannel.transferTo</code> could write to without copying through buffers of its own.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class FileTransfer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileTransfer.class.getName());
+
+    public static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+
+    public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+
+    public static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+
+    public static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Hands over the file to container sendfile support if available. Sendfile is used only when the response is
+     * not wrapped (by filters) as wrappers expect the body to be written to them.
+     *
+     * @param request  - HttpServletRequest
+     * @param response - HttpServletResponse
+     * @param file     - file to be sent as response body
+     * @return true if container is going to send the file, false if caller has to write it
+     */
+    public static boolean sendFile(HttpServletRequest request, HttpServletResponse response, File file) {
+        return sendFile(request, response, file, 0L, file.length());
+    }
+
+    /**
+     * Same as {@link #sendFile(HttpServletRequest, HttpServletResponse, File)} but only for the given part of the file.
+     *
+     * @param request  - HttpServletRequest
+     * @param response - HttpServletResponse
+     * @param file     - file to be sent as response body
+     * @param start    - position of the first byte to be sent
+     * @param end      - position after the last byte to be sent
+     * @return true if container is going to send the part, false if caller has to write it
+     */
+    public static boolean sendFile(HttpServletRequest request, HttpServletResponse response, File file, long start, long end) {
+        if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR)) || response instanceof ServletResponseWrapper) {
+            return false;
+        }
+        try {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to resolve canonical path of {}, not using sendfile.", file);
+            return false;
+        }
+        request.setAttribute(SENDFILE_START_ATTR, start);
+        request.setAttribute(SENDFILE_END_ATTR, end);
+        LOGGER.trace("Using sendfile for {}", file);
+        return true;
+    }
+
+    /**
+     * @param file         - file to be written
+     * @param outputStream - stream to write to (not closed)
+     * @throws IOException - if read/write fails
+     */
+    public static void transfer(File file, OutputStream outputStream) throws IOException {
+        transfer(file, 0L, Long.MAX_VALUE, outputStream);
+    }
+
+    /**
+     * @param file         - file to be written
+     * @param position     - position in the file to start from
+     * @param count        - max number of bytes to write
+     * @param outputStream - stream to write to (not closed)
+     * @throws IOException - if read/write fails
+     */
+    public static void transfer(File file, long position, long count, OutputStream outputStream) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long size = Math.min(channel.size(), position + Math.min(count, Long.MAX_VALUE - position));
+            channel.position(position);
+            byte[] buffer = BUFFER.get();
+            while (position < size) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, size - position));
+                if (read < 0) break;
+                outputStream.write(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private FileTransfer() {
+    } //non instantiable
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.servlets.merge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Immutable result of merging a group of JS or CSS resources.
+ * <p>
+ * Holds the fully merged (and CSS URL rewritten) bytes together with everything needed to answer a request
+ * for them - Content-Type, Content-Length and validators - so that a request served from it is a single bulk write.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ * @see BundleStore
+ */
+public final class MergedBundle {
+
+    private final byte[] contents;
+
+    private final String contentType;
+
+    private final String eTag;
+
+    private final long lastModified;
+
+    public MergedBundle(byte[] contents, String contentType, String eTag, long lastModified) {
+        this.contents = contents;
+        this.contentType = contentType;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public int getContentLength() {
+        return contents.length;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @param outputStream - stream to write merged contents to
+     * @throws IOException - if write fails
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(contents, 0, contents.length);
+    }
+
+    /**
+     * @param outputStream - stream to write to (not closed)
+     * @param offset       - offset of the first byte to be written
+     * @param length       - number of bytes to be written
+     * @throws IOException - if write fails
+     */
+    public void writeTo(OutputStream outputStream, int offset, int length) throws IOException {
+        outputStream.write(contents, offset, length);
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.servlets.merge;
+
+import static com.googlecode.webutilities.util.Utils.hexDigestString;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps gzip compressed copies of merged bundles on disk so that they are compressed once rather than per request.
+ * <p>
+ * File names are derived from the bundle key and ETag, so a modified resource leads to a new file and a stale one
+ * is never served. The file of the previous ETag of a bundle is deleted a minute after the new one is in use, as
+ * requests in flight, or the container sending it after them, may still open it. The oldest files not in use are
+ * deleted once there are more than <code>maxFiles</code>, such as those left by earlier runs.
+ * Files are written by a background thread, requests are served uncompressed meanwhile.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ * @see MergedBundle
+ */
+public class PrecompressedBundles {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrecompressedBundles.class.getName());
+
+    public static final int DEFAULT_MAX_FILES = 1024;
+
+    private static final int MAX_QUEUED_WRITES = 256;
+
+    private static final long RETIRED_GRACE_MILLIS = 60 * 1000L;
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private static final FileFilter GZIP_FILES = new FileFilter() {
+        public boolean accept(File file) {
+            return file.getName().endsWith(GZIP_SUFFIX) && file.isFile();
+        }
+    };
+
+    private static final Comparator<File> OLDEST_FIRST = new Comparator<File>() {
+        public int compare(File file, File other) {
+            long modified = file.lastModified();
+            long otherModified = other.lastModified();
+            return modified < otherModified ? -1 : (modified == otherModified ? 0 : 1);
+        }
+    };
+
+    private final File directory;
+
+    private final int maxFiles;
+
+    private final ConcurrentMap<String, File> files = new ConcurrentHashMap<String, File>(); //bundle key -> file in use
+
+    private final ConcurrentMap<File, Long> retired = new ConcurrentHashMap<File, Long>(); //file of a previous ETag -> time replaced
+
+    private final Set<File> writing = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private final ThreadPoolExecutor writer;
+
+    public PrecompressedBundles(File directory) {
+        this(directory, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param directory - where the files are kept
+     * @param maxFiles  - number of files above which the oldest ones not in use are deleted, 0 or less for no bound
+     */
+    public PrecompressedBundles(File directory, int maxFiles) {
+        this.directory = directory;
+        this.maxFiles = maxFiles;
+        this.writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED_WRITES),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, PrecompressedBundles.class.getSimpleName());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param contextPath - context path used for rewriting URLs in CSS
+     * @param resources   - normalized list of resources
+     * @param bundle      - merged bundle
+     * @return gzip file for the bundle, null if it is not written yet (it will be, in the background) or could not be
+     */
+    public File getGzipFile(String contextPath, List<String> resources, final MergedBundle bundle) {
+        if (bundle.getETag() == null) return null;
+        final String key = BundleStore.keyFor(contextPath, resources);
+        final File file = fileFor(key, bundle);
+        if (file.isFile()) {
+            use(key, file);
+            return file;
+        }
+        if (writing.add(file)) {
+            try {
+                writer.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            write(key, file, bundle);
+                        } finally {
+                            writing.remove(file);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                writing.remove(file);
+                LOGGER.debug("Too many precompressed bundles waiting to be written, not writing {}", file);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the gzip file for the bundle on the calling thread, if not already present.
+     *
+     * @param contextPath - context path used for rewriting URLs in CSS
+     * @param resources   - normalized list of resources
+     * @param bundle      - merged bundle
+     * @return gzip file for the bundle, null if it could not be written
+     */
+    public File writeGzipFile(String contextPath, List<String> resources, MergedBundle bundle) {
+        if (bundle.getETag() == null) return null;
+        String key = BundleStore.keyFor(contextPath, resources);
+        File file = fileFor(key, bundle);
+        if (file.isFile()) {
+            use(key, file);
+            return file;
+        }
+        return write(key, file, bundle);
+    }
+
+    /**
+     * Stops writing files in the background
+     */
+    public void shutdown() {
+        writer.shutdownNow();
+    }
+
+    private File fileFor(String key, MergedBundle bundle) {
+        return new File(directory, hexDigestString((key + ':' + bundle.getETag()).getBytes()) + GZIP_SUFFIX);
+    }
+
+    private File write(String key, File file, MergedBundle bundle) {
+        File tempFile = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                LOGGER.warn("Unable to create directory for precompressed bundles: {}", directory);
+                return null;
+            }
+            tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+            GZIPOutputStream outputStream = new GZIPOutputStream(new FileOutputStream(tempFile));
+            try {
+                bundle.writeTo(outputStream);
+            } finally {
+                outputStream.close();
+            }
+            if (!tempFile.renameTo(file) && !file.isFile()) {
+                LOGGER.warn("Unable to move precompressed bundle to {}", file);
+                return null;
+            }
+            LOGGER.debug("Precompressed bundle written to {}", file);
+            use(key, file);
+            trim();
+            return file;
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to write precompressed bundle {}", file, ex);
+            return null;
+        } finally {
+            if (tempFile != null && tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Remembers the file in use for the bundle, retiring the one of its previous ETag
+     */
+    private void use(String key, File file) {
+        File previous = files.put(key, file);
+        if (previous != null && !previous.equals(file)) {
+            retired.put(previous, System.currentTimeMillis());
+        }
+        if (!retired.isEmpty()) {
+            retired.remove(file); //in use again
+            deleteRetired();
+        }
+    }
+
+    /**
+     * Deletes files retired for longer than the grace period, those which can not be deleted yet are tried again later
+     */
+    private void deleteRetired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<File, Long> entry : retired.entrySet()) {
+            File file = entry.getKey();
+            if (now - entry.getValue() >= RETIRED_GRACE_MILLIS && !files.containsValue(file)
+                && (file.delete() || !file.exists()) && retired.remove(file, entry.getValue())) {
+                LOGGER.debug("Deleted stale precompressed bundle {}", file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest files not in use while there are more than <code>maxFiles</code>
+     */
+    private void trim() {
+        if (maxFiles <= 0) return;
+        File[] all = directory.listFiles(GZIP_FILES);
+        if (all == null || all.length <= maxFiles) return;
+        Arrays.sort(all, OLDEST_FIRST);
+        Set<File> inUse = new HashSet<File>(files.values());
+        inUse.addAll(retired.keySet());
+        int count = all.length;
+        for (int i = 0; i < all.length && count > maxFiles; i++) {
+            if (!inUse.contains(all[i]) && all[i].delete()) {
+                count--;
+            }
+        }
+        LOGGER.debug("Trimmed precompressed bundles from {} to {} files", all.length, count);
+    }
+
+}
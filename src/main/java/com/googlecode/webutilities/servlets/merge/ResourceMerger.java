@@ -0,0 +1,394 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.servlets.merge;
+
+import static com.googlecode.webutilities.common.Constants.EXT_CSS;
+import static com.googlecode.webutilities.util.Utils.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.webutilities.util.ResourceMetadata;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+
+/**
+ * Merges JS or CSS resources into a single output, correcting image URLs in CSS if asked to.
+ * <p>
+ * Resources which need no processing and resolve to a real file are copied as is, without decoding them, see
+ * <code>FileTransfer</code>.
+ * CSS is rewritten in a single pass by <code>CssUrlRewriter</code>, resolved image paths and their fingerprints are
+ * remembered per CSS file and images referred are recorded in the <code>CssDependencyGraph</code>.
+ * Used by both <code>JSCSSMergeServlet</code> and <code>JSCSSMergeModule</code>.
+ * </p>
+ * <p>
+ * Optionally members of large bundles are loaded (and rewritten) concurrently on a small bounded pool and written in
+ * declared order, see {@link #enableParallelLoading(int, int, long)}.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ * @see FileTransfer
+ */
+public class ResourceMerger {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceMerger.class.getName());
+
+    private final ServletContext context;
+
+    private final boolean autoCorrectUrlsInCSS;
+
+    private final boolean turnOffUrlFingerPrinting;
+
+    /**
+     * Resolved image paths and fingerprints kept, at most this many of each, least recently used evicted first
+     */
+    static final int MAX_ENTRIES = 1024;
+
+    /**
+     * Resolved image paths, per css file and referred URL
+     */
+    private final Map<String, String> resolvedImagePaths = lruMap();
+
+    private final Map<String, FingerPrint> fingerPrints = lruMap();
+
+    private ThreadPoolExecutor executor; //null unless parallel loading is enabled
+
+    private int parallelMinResources;
+
+    private long parallelMinBytes;
+
+    public ResourceMerger(ServletContext context, boolean autoCorrectUrlsInCSS, boolean turnOffUrlFingerPrinting) {
+        this.context = context;
+        this.autoCorrectUrlsInCSS = autoCorrectUrlsInCSS;
+        this.turnOffUrlFingerPrinting = turnOffUrlFingerPrinting;
+    }
+
+    /**
+     * Loads members of bundles having at least <code>minResources</code> members or <code>minBytes</code> bytes
+     * concurrently. Pool threads are daemons and go away when idle. Should be called before merging starts.
+     *
+     * @param threads      - max number of threads loading members, 0 or less to keep loading serially
+     * @param minResources - number of members from which a bundle is loaded concurrently
+     * @param minBytes     - total size of members from which a bundle is loaded concurrently
+     */
+    public void enableParallelLoading(int threads, int minResources, long minBytes) {
+        if (threads <= 0) return;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(threads * 64), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, ResourceMerger.class.getSimpleName() + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy()); //when saturated, request thread loads the member itself
+        this.executor.allowCoreThreadTimeOut(true);
+        this.parallelMinResources = minResources;
+        this.parallelMinBytes = minBytes;
+    }
+
+    /**
+     * Stops the threads loading members concurrently, if any
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param resourcePath - resource relative path
+     * @return true if resource contents have to be processed (CSS image URLs corrected) before writing
+     */
+    public boolean needsProcessing(String resourcePath) {
+        return autoCorrectUrlsInCSS && resourcePath.endsWith(EXT_CSS);
+    }
+
+    /**
+     * @param resourcePath - resource relative path
+     * @return real file if resource can be served as is from the file system, null otherwise
+     */
+    public File getFileToServeAsIs(String resourcePath) {
+        if (needsProcessing(resourcePath)) return null;
+        ResourceMetadata metadata = ResourceMetadataRegistry.getInstance(context).get(resourcePath);
+        return metadata != null ? new File(metadata.getRealPath()) : null;
+    }
+
+    /**
+     * @param contextPath      HttpServletRequest context path or custom context path for CSS urls
+     * @param outputStream     - OutputStream
+     * @param resourcesToMerge list of resources to merge
+     * @return number of non existing, unprocessed resources
+     */
+    public int merge(String contextPath, OutputStream outputStream, List<String> resourcesToMerge) {
+
+        if (this.isToBeLoadedInParallel(resourcesToMerge)) {
+            return this.mergeInParallel(contextPath, outputStream, resourcesToMerge);
+        }
+
+        int resourcesNotFound = 0;
+
+        for (String resourcePath : resourcesToMerge) {
+            if (!this.mergeResource(contextPath, outputStream, resourcePath)) {
+                resourcesNotFound++;
+            }
+        }
+        return resourcesNotFound;
+    }
+
+    /**
+     * @param resourcesToMerge - list of resources to merge
+     * @return true if parallel loading is enabled and the bundle is large enough for it
+     */
+    private boolean isToBeLoadedInParallel(List<String> resourcesToMerge) {
+        if (executor == null || resourcesToMerge.size() < 2) return false;
+        if (resourcesToMerge.size() >= parallelMinResources) return true;
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        long bytes = 0;
+        for (String resourcePath : resourcesToMerge) {
+            ResourceMetadata metadata = registry.get(resourcePath);
+            bytes += metadata != null ? metadata.getLength() : 0;
+        }
+        return bytes >= parallelMinBytes;
+    }
+
+    /**
+     * Loads every member in to memory concurrently and writes them in declared order.
+     *
+     * @param contextPath      HttpServletRequest context path or custom context path for CSS urls
+     * @param outputStream     - OutputStream
+     * @param resourcesToMerge list of resources to merge
+     * @return number of non existing, unprocessed resources
+     */
+    private int mergeInParallel(final String contextPath, OutputStream outputStream, List<String> resourcesToMerge) {
+        LOGGER.trace("Loading {} resources in parallel", resourcesToMerge.size());
+        List<Future<byte[]>> loaded = new ArrayList<Future<byte[]>>(resourcesToMerge.size());
+        for (final String resourcePath : resourcesToMerge) {
+            loaded.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                    return mergeResource(contextPath, contents, resourcePath) ? contents.toByteArray() : null;
+                }
+            }));
+        }
+        int resourcesNotFound = 0;
+        for (int i = 0; i < loaded.size(); i++) {
+            byte[] contents = null;
+            try {
+                contents = loaded.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<byte[]> future : loaded.subList(i, loaded.size())) {
+                    future.cancel(true);
+                }
+                return resourcesNotFound + loaded.size() - i;
+            } catch (ExecutionException e) {
+                LOGGER.error("Error while reading resource : {}", resourcesToMerge.get(i));
+                LOGGER.error("Exception: ", e.getCause());
+            }
+            if (contents == null) {
+                resourcesNotFound++;
+                continue;
+            }
+            try {
+                outputStream.write(contents);
+            } catch (IOException e) {
+                LOGGER.error("Error while writing resource : {}", resourcesToMerge.get(i));
+                LOGGER.error("IOException: ", e);
+            }
+        }
+        return resourcesNotFound;
+    }
+
+    /**
+     * @param contextPath  HttpServletRequest context path or custom context path for CSS urls
+     * @param outputStream - OutputStream
+     * @param resourcePath - resource relative path
+     * @return false if resource does not exist
+     */
+    private boolean mergeResource(String contextPath, OutputStream outputStream, String resourcePath) {
+
+        LOGGER.trace("Processing resource : {}", resourcePath);
+
+        File file = this.getFileToServeAsIs(resourcePath);
+        if (file != null) {
+            try {
+                FileTransfer.transfer(file, outputStream);
+            } catch (IOException e) {
+                LOGGER.error("Error while reading resource : {}", resourcePath);
+                LOGGER.error("IOException: ", e);
+            }
+            return true;
+        }
+
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        if (registry.isMissing(resourcePath)) {
+            LOGGER.trace("Resource recently found missing : {}", resourcePath);
+            return false;
+        }
+
+        InputStream is = null;
+
+        try {
+            is = context.getResourceAsStream(resourcePath);
+            if (is == null) {
+                registry.markMissing(resourcePath);
+                return false;
+            }
+            if (this.needsProcessing(resourcePath)) { //Need to deal with images url in CSS
+
+                this.processCSS(contextPath, resourcePath, is, outputStream);
+
+            } else {
+                byte[] buffer = new byte[8192];
+                int c;
+                while ((c = is.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, c);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error while reading resource : {}", resourcePath);
+            LOGGER.error("IOException: ", e);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ex) {
+                    LOGGER.warn("Failed to close stream:", ex);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param cssFilePath  - css file path
+     * @param contextPath  - context path or custom configured context path
+     * @param inputStream  - input stream
+     * @param outputStream - output stream
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    private void processCSS(final String contextPath, final String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        ResourceMetadata css = registry.get(cssFilePath);
+        final List<String> referencedImages = new ArrayList<String>();
+        new CssUrlRewriter(new CssUrlRewriter.UrlResolver() {
+            @Override
+            public String resolve(String refImgPath) {
+                return resolveImageURL(contextPath, cssFilePath, refImgPath, referencedImages);
+            }
+        }).rewrite(inputStream, outputStream);
+        if (css != null) { //saves scanning the file again for its validators
+            registry.getDependencyGraph().setImages(cssFilePath, css, referencedImages);
+        }
+    }
+
+    /**
+     * @param contextPath      - APP context path or any custom configured context path
+     * @param cssFilePath      - css file path
+     * @param refImgPath       - image URL as referred in css
+     * @param resolvedImgPaths - list to add the resolved image path to
+     * @return URL to be written in place of referred one, null if it has to be kept as is
+     */
+    private String resolveImageURL(String contextPath, String cssFilePath, String refImgPath, List<String> resolvedImgPaths) {
+        if (isProtocolURL(refImgPath)) { //ignore absolute protocol paths
+            return null;
+        }
+        String key = cssFilePath + '\n' + refImgPath;
+        String resolvedImgPath = resolvedImagePaths.get(key);
+        if (resolvedImgPath == null) {
+            resolvedImgPath = refImgPath;
+            if (!refImgPath.startsWith("/")) {
+                resolvedImgPath = buildProperPath(getParentPath(cssFilePath), refImgPath);
+            }
+            resolvedImagePaths.put(key, resolvedImgPath);
+        }
+        resolvedImgPaths.add(resolvedImgPath);
+        return contextPath + (this.turnOffUrlFingerPrinting ? resolvedImgPath : addFingerPrint(this.getFingerPrint(resolvedImgPath), resolvedImgPath));
+    }
+
+    /**
+     * @param resourcePath - resource relative path
+     * @return fingerprint of the resource, reused as long as the resource is not modified
+     */
+    private String getFingerPrint(String resourcePath) {
+        if (resourcePath.endsWith(EXT_CSS)) { //depends on images referred too, not only on the file itself
+            return buildETagForResource(resourcePath, context);
+        }
+        ResourceMetadata metadata = ResourceMetadataRegistry.getInstance(context).get(resourcePath);
+        if (metadata == null) {
+            return null;
+        }
+        FingerPrint fingerPrint = fingerPrints.get(resourcePath);
+        if (fingerPrint == null || !fingerPrint.metadata.isSameVersion(metadata)) {
+            fingerPrint = new FingerPrint(metadata, buildETagForResource(resourcePath, context));
+            fingerPrints.put(resourcePath, fingerPrint);
+        }
+        return fingerPrint.value;
+    }
+
+    private static <V> Map<String, V> lruMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        });
+    }
+
+    /**
+     * Fingerprint of a resource along with the version of the resource it was computed for
+     */
+    private static class FingerPrint {
+
+        private final ResourceMetadata metadata;
+
+        private final String value;
+
+        FingerPrint(ResourceMetadata metadata, String value) {
+            this.metadata = metadata;
+            this.value = value;
+        }
+    }
+
+}
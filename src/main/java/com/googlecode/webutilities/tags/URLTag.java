@@ -22,13 +22,15 @@ import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.PageContext;
 import javax.servlet.jsp.tagext.BodyTagSupport;
 
+import com.googlecode.webutilities.servlets.merge.BundleManifest;
 import com.googlecode.webutilities.util.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Tag to get fingerprinted URL for static resources.
+ * Tag to get fingerprinted URL for static resources. Value can also be name of a bundle defined in
+ * <code>bundleManifest</code> of <code>JSCSSMergeServlet</code> (eg. app.js) to get its hashed URL.
  *
  * @author rpatil
  * @version 1.0
@@ -84,13 +86,19 @@ public class URLTag extends BodyTagSupport {
             context = httpServletRequest.getContextPath();
         }
 
+        BundleManifest bundleManifest = BundleManifest.getInstance(pageContext.getServletContext());
+        if (bundleManifest != null && bundleManifest.contains(value)) { //named bundle, eg. app.js
+            value = (context + "/" + bundleManifest.getURL(value, pageContext.getServletContext())).replaceAll("/+", "/");
+            return gracefully();
+        }
+
         if ((!context.startsWith("/") || !value.startsWith("/")) && value.endsWith("/")) {
             LOGGER.warn("Invalid context|value.");
             throw new JspTagException("Invalid context|value");
         }
 
         //We got the url, now suffix the fingerprint to it, right before .
-        String eTag = Utils.buildETagForResources(Utils.findResourcesToMerge(context, value),pageContext.getServletContext());
+        String eTag = Utils.buildETagForResources(Utils.findResourcesToMerge(context, value, pageContext.getServletContext()),pageContext.getServletContext());
 
         value = Utils.addFingerPrint(eTag, value);
 
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.webutilities.servlets.merge.CssUrlRewriter;
+
+/**
+ * Images referred by CSS files and, the other way round, CSS files referring an image, by context relative path.
+ * <p>
+ * Dependencies of a CSS file are recorded along with the version (last modified time and length) of the file they
+ * were found in, either by <code>ResourceMerger</code> while rewriting the CSS or by scanning the file once on first
+ * look up. They are looked up again only when the CSS file changes. Validators of a CSS file (ETag, last modified) are
+ * composed in memory from versions of the file and its images, files are never touched to mark them modified.
+ * </p>
+ * <p>
+ * Look ups are lock free, updates (once per version of a CSS file) are serialized to keep both directions in sync.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ * @see ResourceMetadataRegistry#getDependencyGraph()
+ */
+public final class CssDependencyGraph {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CssDependencyGraph.class.getName());
+
+    /**
+     * Discards the CSS written back while scanning
+     */
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final ConcurrentMap<String, Dependencies> imagesByCss = new ConcurrentHashMap<String, Dependencies>();
+
+    private final ConcurrentMap<String, Set<String>> cssByImage = new ConcurrentHashMap<String, Set<String>>();
+
+    CssDependencyGraph() {
+    }
+
+    /**
+     * @param cssPath - context relative path of the CSS file
+     * @param css     - current metadata of the CSS file
+     * @return sorted paths of the images referred by the CSS file, scanned if not known for this version yet
+     */
+    public Set<String> getImages(String cssPath, ResourceMetadata css) {
+        if (css == null) return Collections.emptySet();
+        Dependencies dependencies = imagesByCss.get(cssPath);
+        if (dependencies != null && dependencies.css.isSameVersion(css)) {
+            return dependencies.images;
+        }
+        Set<String> images = scan(cssPath, css);
+        if (images == null) {
+            return dependencies != null ? dependencies.images : Collections.<String>emptySet();
+        }
+        return setImages(cssPath, css, images);
+    }
+
+    /**
+     * @param imagePath - context relative path of the image
+     * @return paths of the CSS files known to refer the image
+     */
+    public Set<String> getReferringCss(String imagePath) {
+        Set<String> cssPaths = cssByImage.get(imagePath);
+        return cssPaths != null ? Collections.unmodifiableSet(cssPaths) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Records all the images referred by a version of the CSS file, replacing the ones recorded earlier.
+     *
+     * @param cssPath    - context relative path of the CSS file
+     * @param css        - metadata of the CSS file the images were found in
+     * @param imagePaths - context relative paths of the images, query string or fragment if any is ignored
+     * @return sorted image paths as recorded
+     */
+    public Set<String> setImages(String cssPath, ResourceMetadata css, Collection<String> imagePaths) {
+        Set<String> images = new TreeSet<String>();
+        for (String imagePath : imagePaths) {
+            images.add(stripQuery(imagePath));
+        }
+        Dependencies dependencies = new Dependencies(css, Collections.unmodifiableSet(images));
+        synchronized (this) {
+            Dependencies previous = imagesByCss.put(cssPath, dependencies);
+            if (previous != null) {
+                unlink(cssPath, previous.images);
+            }
+            for (String image : images) {
+                Set<String> cssPaths = cssByImage.get(image);
+                if (cssPaths == null) {
+                    cssPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    cssByImage.put(image, cssPaths);
+                }
+                cssPaths.add(cssPath);
+            }
+        }
+        return dependencies.images;
+    }
+
+    /**
+     * @param cssPath - context relative path of the CSS file which is deleted
+     */
+    public void remove(String cssPath) {
+        synchronized (this) {
+            Dependencies previous = imagesByCss.remove(cssPath);
+            if (previous != null) {
+                unlink(cssPath, previous.images);
+            }
+        }
+    }
+
+    private void unlink(String cssPath, Set<String> images) {
+        for (String image : images) {
+            Set<String> cssPaths = cssByImage.get(image);
+            if (cssPaths != null && cssPaths.remove(cssPath) && cssPaths.isEmpty()) {
+                cssByImage.remove(image);
+            }
+        }
+    }
+
+    /**
+     * @param cssPath - context relative path of the CSS file
+     * @param css     - metadata of the CSS file
+     * @return paths of the images referred, null if the file could not be read
+     */
+    private static Set<String> scan(final String cssPath, ResourceMetadata css) {
+        final Set<String> images = new TreeSet<String>();
+        final String parentPath = Utils.getParentPath(cssPath);
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(css.getRealPath());
+            new CssUrlRewriter(new CssUrlRewriter.UrlResolver() {
+                @Override
+                public String resolve(String url) {
+                    if (!Utils.isProtocolURL(url)) { //ignore absolute protocol paths
+                        images.add(url.startsWith("/") ? url : Utils.buildProperPath(parentPath, url));
+                    }
+                    return null;
+                }
+            }).rewrite(inputStream, NULL_OUTPUT_STREAM);
+            LOGGER.trace("Scanned {}, refers {}", cssPath, images);
+            return images;
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to scan {} for referred images.", cssPath, ex);
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static String stripQuery(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '?' || c == '#') {
+                return path.substring(0, i);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Images referred by a version of a CSS file
+     */
+    private static class Dependencies {
+
+        private final ResourceMetadata css;
+
+        private final Set<String> images;
+
+        Dependencies(ResourceMetadata css, Set<String> images) {
+            this.css = css;
+            this.images = images;
+        }
+    }
+
+}
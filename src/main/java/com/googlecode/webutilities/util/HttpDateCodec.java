@@ -0,0 +1,274 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.util;
+
+/**
+ * Parses and formats HTTP dates without <code>SimpleDateFormat</code>, exceptions or intermediate objects.
+ * <p>
+ * Parses all three formats allowed by HTTP/1.1 (RFC 7231 section 7.1.1.1), in GMT:
+ * </p>
+ * <pre>
+ * Sun, 06 Nov 1994 08:49:37 GMT  ; IMF-fixdate (RFC 1123)
+ * Sunday, 06-Nov-94 08:49:37 GMT ; obsolete RFC 850 format
+ * Sun Nov  6 08:49:37 1994       ; ANSI C's asctime() format
+ * </pre>
+ * <p>
+ * Formats always as IMF-fixdate. Dates relative to the current second, like <code>Date</code> and
+ * <code>Expires</code>, are remembered apart from other dates, like <code>Last-Modified</code>, so that each is
+ * formatted only once while it is repeated, rather than one evicting the other.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class HttpDateCodec {
+
+    /**
+     * Returned by {@link #parse(String)} for values which are not HTTP dates
+     */
+    public static final long INVALID = -1;
+
+    private static final String[] DAYS = {"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"}; //1970-01-01 was Thursday
+
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static volatile Formatted lastFormatted = new Formatted(Long.MIN_VALUE, 0, null);
+
+    private static volatile Formatted lastFromNow = new Formatted(Long.MIN_VALUE, 0, null);
+
+    /**
+     * @param value - header value
+     * @return milliseconds since epoch, {@link #INVALID} if value is not an HTTP date
+     */
+    public static long parse(String value) {
+        if (value == null) return INVALID;
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) <= ' ') end--;
+        int pos = 0;
+        while (pos < end && value.charAt(pos) <= ' ') pos++;
+        int comma = value.indexOf(',', pos);
+        if (comma < 0 || comma >= end) {
+            return parseAsctime(value, pos, end);
+        }
+        pos = comma + 1;
+        while (pos < end && value.charAt(pos) == ' ') pos++;
+        int dayDigits = pos + 1 < end && Character.isDigit(value.charAt(pos + 1)) ? 2 : 1; //be lenient on 6 Nov 1994
+        int day = digits(value, pos, dayDigits);
+        pos += dayDigits;
+        char separator = pos < end ? value.charAt(pos) : 0;
+        if (separator != ' ' && separator != '-') return INVALID;
+        int month = month(value, pos + 1, end);
+        pos += 4;
+        if (pos >= end || value.charAt(pos) != separator) return INVALID;
+        pos++;
+        int year;
+        if (separator == ' ') { //IMF-fixdate
+            year = digits(value, pos, 4);
+            pos += 4;
+        } else { //RFC 850, two digit year
+            year = digits(value, pos, 2);
+            pos += 2;
+            if (year >= 0) year += year < 70 ? 2000 : 1900;
+        }
+        if (pos >= end || value.charAt(pos) != ' ') return INVALID;
+        long time = time(value, pos + 1, end);
+        pos += 9;
+        if (time < 0 || !isGmt(value, pos, end)) return INVALID;
+        return toMillis(year, month, day, time);
+    }
+
+    private static long parseAsctime(String value, int pos, int end) {
+        //Sun Nov  6 08:49:37 1994
+        if (end - pos != 24 || value.charAt(pos + 3) != ' ' || value.charAt(pos + 7) != ' ' || value.charAt(pos + 10) != ' '
+            || value.charAt(pos + 19) != ' ') {
+            return INVALID;
+        }
+        int month = month(value, pos + 4, end);
+        int day = value.charAt(pos + 8) == ' ' ? digits(value, pos + 9, 1) : digits(value, pos + 8, 2);
+        long time = time(value, pos + 11, end);
+        int year = digits(value, pos + 20, 4);
+        return time < 0 ? INVALID : toMillis(year, month, day, time);
+    }
+
+    /**
+     * @return milliseconds of HH:mm:ss starting at pos, negative if invalid
+     */
+    private static long time(String value, int pos, int end) {
+        if (pos + 8 > end || value.charAt(pos + 2) != ':' || value.charAt(pos + 5) != ':') return INVALID;
+        int hours = digits(value, pos, 2);
+        int minutes = digits(value, pos + 3, 2);
+        int seconds = digits(value, pos + 6, 2);
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 60) return INVALID;
+        return ((hours * 60L + minutes) * 60 + seconds) * 1000;
+    }
+
+    private static boolean isGmt(String value, int pos, int end) {
+        return pos < end && value.charAt(pos) == ' ' && (value.regionMatches(true, pos + 1, "GMT", 0, 3) && pos + 4 == end
+            || value.regionMatches(true, pos + 1, "UTC", 0, 3) && pos + 4 == end);
+    }
+
+    /**
+     * @return 0 based month of the three letter name at pos, -1 if none
+     */
+    private static int month(String value, int pos, int end) {
+        if (pos + 3 > end) return -1;
+        for (int i = 0; i < MONTHS.length; i++) {
+            if (value.regionMatches(true, pos, MONTHS[i], 0, 3)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return value of count decimal digits at pos, -1 if any is not a digit
+     */
+    private static int digits(String value, int pos, int count) {
+        if (pos < 0 || pos + count > value.length()) return -1;
+        int result = 0;
+        for (int i = pos; i < pos + count; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static long toMillis(int year, int month, int day, long time) {
+        if (year < 0 || month < 0 || day < 1 || day > 31) return INVALID;
+        return daysFromCivil(year, month + 1, day) * MILLIS_PER_DAY + time;
+    }
+
+    /**
+     * @return days since 1970-01-01 of the proleptic Gregorian date, month is 1 based
+     */
+    private static long daysFromCivil(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @param time - milliseconds since epoch
+     * @return IMF-fixdate, eg. Sun, 06 Nov 1994 08:49:37 GMT
+     */
+    public static String format(long time) {
+        long second = floorDiv(time, 1000);
+        Formatted formatted = lastFormatted;
+        if (formatted.second == second) {
+            return formatted.value;
+        }
+        String value = doFormat(second);
+        lastFormatted = new Formatted(second, 0, value);
+        return value;
+    }
+
+    /**
+     * @return current time as IMF-fixdate, eg. for Date header
+     */
+    public static String formatNow() {
+        return formatFromNow(0);
+    }
+
+    /**
+     * @param offset - milliseconds from the current second
+     * @return IMF-fixdate of the current second plus offset, eg. for Expires header
+     */
+    public static String formatFromNow(long offset) {
+        long now = floorDiv(System.currentTimeMillis(), 1000);
+        Formatted formatted = lastFromNow;
+        if (formatted.second == now && formatted.offset == offset) {
+            return formatted.value;
+        }
+        String value = doFormat(now + floorDiv(offset, 1000));
+        lastFromNow = new Formatted(now, offset, value);
+        return value;
+    }
+
+    private static String doFormat(long second) {
+        long days = floorDiv(second, 86400);
+        int secondOfDay = (int) (second - days * 86400);
+        //civil from days
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] chars = new char[29];
+        DAYS[(int) (((days % 7) + 7) % 7)].getChars(0, 3, chars, 0);
+        chars[3] = ',';
+        chars[4] = ' ';
+        twoDigits(chars, 5, day);
+        chars[7] = ' ';
+        MONTHS[month - 1].getChars(0, 3, chars, 8);
+        chars[11] = ' ';
+        twoDigits(chars, 12, (int) (year / 100));
+        twoDigits(chars, 14, (int) (year % 100));
+        chars[16] = ' ';
+        twoDigits(chars, 17, secondOfDay / 3600);
+        chars[19] = ':';
+        twoDigits(chars, 20, secondOfDay / 60 % 60);
+        chars[22] = ':';
+        twoDigits(chars, 23, secondOfDay % 60);
+        chars[25] = ' ';
+        chars[26] = 'G';
+        chars[27] = 'M';
+        chars[28] = 'T';
+        return new String(chars);
+    }
+
+    private static void twoDigits(char[] chars, int pos, int value) {
+        chars[pos] = (char) ('0' + value / 10 % 10);
+        chars[pos + 1] = (char) ('0' + value % 10);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * Formatted value of a second, plus offset
+     */
+    private static class Formatted {
+
+        private final long second;
+
+        private final long offset;
+
+        private final String value;
+
+        Formatted(long second, long offset, String value) {
+            this.second = second;
+            this.offset = offset;
+            this.value = value;
+        }
+    }
+
+    private HttpDateCodec() {
+    } //non instantiable
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MIME types by file extension, read once from the bundled <code>mime.types</code> table (same format as the one of
+ * Apache httpd) and, if the web application has one, from a table of its own given by context init param
+ * <code>mimeTypes</code> (context relative path) whose mappings override the bundled ones.
+ * <p>
+ * Look ups are case insensitive, go by the last extension of the path and allocate nothing. Along with the name, each
+ * type tells whether it is worth compressing and whether a charset applies to it, which compression and character
+ * encoding filters use to leave binary contents alone.
+ * </p>
+ * <p>
+ * The registry of a web application is kept in its servlet context, so that web applications sharing the library do
+ * not see each other's types. Where no servlet context is at hand, the registry of the bundled table only is used.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class MimeRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MimeRegistry.class.getName());
+
+    public static final String INIT_PARAM_MIME_TYPES = "mimeTypes";
+
+    private static final String BUNDLED_MIME_TYPES = "mime.types";
+
+    private static final String CONTEXT_ATTR = MimeRegistry.class.getName();
+
+    private static volatile MimeRegistry bundled;
+
+    private final Table byExtension;
+
+    private final Table byName;
+
+    private MimeRegistry(Map<String, MimeType> extensions) {
+        Map<String, MimeType> names = new LinkedHashMap<String, MimeType>();
+        for (MimeType type : extensions.values()) {
+            names.put(type.getName(), type);
+        }
+        this.byExtension = new Table(extensions);
+        this.byName = new Table(names);
+    }
+
+    /**
+     * @return registry with the bundled table only, for where no servlet context is at hand
+     */
+    public static MimeRegistry getInstance() {
+        MimeRegistry registry = bundled;
+        if (registry == null) {
+            synchronized (MimeRegistry.class) {
+                if (bundled == null) {
+                    bundled = new MimeRegistry(load(null));
+                }
+                registry = bundled;
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * @param context - servlet context
+     * @return registry for the web application, created on first call
+     */
+    public static MimeRegistry getInstance(ServletContext context) {
+        Object registry = context.getAttribute(CONTEXT_ATTR);
+        if (registry instanceof MimeRegistry) {
+            return (MimeRegistry) registry;
+        }
+        synchronized (MimeRegistry.class) {
+            registry = context.getAttribute(CONTEXT_ATTR);
+            if (registry instanceof MimeRegistry) {
+                return (MimeRegistry) registry;
+            }
+            MimeRegistry newRegistry = new MimeRegistry(load(context));
+            context.setAttribute(CONTEXT_ATTR, newRegistry);
+            return newRegistry;
+        }
+    }
+
+    /**
+     * @param path - file path, URL or just the extension (eg. <code>.js</code>)
+     * @return type for the extension of the path, null if it has none or it is not known
+     */
+    public MimeType lookup(String path) {
+        if (path == null) return null;
+        for (int i = path.length() - 1; i >= 0; i--) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                return byExtension.get(path, i + 1, path.length());
+            }
+            if (c == '/') {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param path - file path, URL or just the extension (eg. <code>.js</code>)
+     * @return MIME type name for the extension of the path, null if it is not known
+     */
+    public String getMimeType(String path) {
+        MimeType type = lookup(path);
+        return type != null ? type.getName() : null;
+    }
+
+    /**
+     * @param contentType - content type, with or without parameters (eg. <code>text/css; charset=UTF-8</code>)
+     * @return type by name, null if it is not known
+     */
+    public MimeType forContentType(String contentType) {
+        if (contentType == null) return null;
+        int end = contentType.indexOf(';');
+        if (end < 0) {
+            end = contentType.length();
+        }
+        while (end > 0 && contentType.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return byName.get(contentType, 0, end);
+    }
+
+    /**
+     * @param context - servlet context to read table of the web application from, null for the bundled table only
+     * @return types by (lower case) extension
+     */
+    private static Map<String, MimeType> load(ServletContext context) {
+        Map<String, MimeType> extensions = new LinkedHashMap<String, MimeType>();
+        read(MimeRegistry.class.getResourceAsStream(BUNDLED_MIME_TYPES), BUNDLED_MIME_TYPES, extensions);
+        String mimeTypes = context != null ? context.getInitParameter(INIT_PARAM_MIME_TYPES) : null;
+        if (mimeTypes != null) {
+            InputStream inputStream = context.getResourceAsStream(mimeTypes);
+            if (inputStream == null) {
+                LOGGER.warn("MIME types {} not found.", mimeTypes);
+            }
+            read(inputStream, mimeTypes, extensions);
+        }
+        LOGGER.debug("MIME registry initialized with {} extensions, {}:{}", new Object[]{extensions.size(), INIT_PARAM_MIME_TYPES, mimeTypes});
+        return extensions;
+    }
+
+    private static void read(InputStream inputStream, String source, Map<String, MimeType> extensions) {
+        if (inputStream == null) return;
+        Map<String, MimeType> types = new LinkedHashMap<String, MimeType>();
+        for (MimeType type : extensions.values()) {
+            types.put(type.getName(), type);
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(inputStream, "ISO-8859-1"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                String[] tokens = line.split("\\s+");
+                String name = tokens[0].toLowerCase();
+                MimeType type = types.get(name);
+                if (type == null) {
+                    type = new MimeType(name);
+                    types.put(name, type);
+                }
+                for (int i = 1; i < tokens.length; i++) {
+                    extensions.put(tokens[i].toLowerCase(), type);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to read MIME types {}", source, ex);
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                } else {
+                    inputStream.close();
+                }
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A MIME type along with hints about how to treat contents of the type
+     */
+    public static final class MimeType {
+
+        private final String name;
+
+        private final boolean charsetApplicable;
+
+        private final boolean compressible;
+
+        MimeType(String name) {
+            this.name = name;
+            this.charsetApplicable = name.startsWith("text/") || name.equals("application/javascript") || name.equals("application/json")
+                || name.equals("application/xml") || name.endsWith("+json") || name.endsWith("+xml");
+            this.compressible = charsetApplicable || name.equals("application/wasm") || name.equals("application/vnd.ms-fontobject")
+                || name.equals("font/ttf") || name.equals("font/otf") || name.equals("image/x-icon") || name.equals("image/bmp");
+        }
+
+        /**
+         * @return lower case name of the type, eg. <code>text/css</code>
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return true if contents are text, to which a charset applies
+         */
+        public boolean isCharsetApplicable() {
+            return charsetApplicable;
+        }
+
+        /**
+         * @return true if contents are worth compressing, false if they are compressed already (images, archives etc.)
+         */
+        public boolean isCompressible() {
+            return compressible;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Open addressing hash table of lower case keys, looked up by a region of a string ignoring case
+     */
+    private static final class Table {
+
+        private final String[] keys;
+
+        private final MimeType[] values;
+
+        private final int mask;
+
+        Table(Map<String, MimeType> entries) {
+            int capacity = 16;
+            while (capacity < entries.size() * 2) {
+                capacity <<= 1;
+            }
+            keys = new String[capacity];
+            values = new MimeType[capacity];
+            mask = capacity - 1;
+            for (Map.Entry<String, MimeType> entry : entries.entrySet()) {
+                String key = entry.getKey();
+                int i = hash(key, 0, key.length()) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = entry.getValue();
+            }
+        }
+
+        MimeType get(String string, int from, int to) {
+            int length = to - from;
+            int i = hash(string, from, to) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (key.length() == length && string.regionMatches(true, from, key, 0, length)) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int hash(String string, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + Character.toLowerCase(string.charAt(i));
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+}
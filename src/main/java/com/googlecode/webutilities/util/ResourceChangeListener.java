@@ -0,0 +1,34 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+/**
+ * Listener notified by <code>ResourceMetadataRegistry</code> when a tracked resource is modified or deleted.
+ *
+ * @author rpatil
+ * @version 1.0
+ * @see ResourceMetadataRegistry
+ */
+public interface ResourceChangeListener {
+
+    /**
+     * @param relativePath - context relative path of the resource
+     * @param metadata     - new metadata of the resource, null if it has been deleted
+     */
+    void resourceChanged(String relativePath, ResourceMetadata metadata);
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import java.io.File;
+
+/**
+ * Immutable snapshot of file system attributes of a web resource, held by <code>ResourceMetadataRegistry</code>.
+ *
+ * @author rpatil
+ * @version 1.0
+ * @see ResourceMetadataRegistry
+ */
+public final class ResourceMetadata {
+
+    private final String realPath;
+
+    private final long lastModified;
+
+    private final long length;
+
+    /**
+     * When the file system was looked at for this snapshot
+     */
+    private final long checkedAt;
+
+    ResourceMetadata(String realPath, long lastModified, long length, long checkedAt) {
+        this.realPath = realPath;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.checkedAt = checkedAt;
+    }
+
+    /**
+     * @param realPath - real path of the resource
+     * @return current metadata of the file, null if it is not an existing regular file
+     */
+    static ResourceMetadata read(String realPath) {
+        if (realPath == null) return null;
+        File file = new File(realPath);
+        return file.isFile() ? new ResourceMetadata(realPath, file.lastModified(), file.length(), System.currentTimeMillis()) : null;
+    }
+
+    public String getRealPath() {
+        return realPath;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    long getCheckedAt() {
+        return checkedAt;
+    }
+
+    /**
+     * @param other - metadata to compare with
+     * @return true if both have same last modified time and length
+     */
+    public boolean isSameVersion(ResourceMetadata other) {
+        return other != null && other.lastModified == lastModified && other.length == length;
+    }
+
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per web application registry of resource metadata (real path, last modified and length).
+ * <p>
+ * Request processing reads the metadata from memory instead of calling <code>getRealPath</code> and stat-ing the
+ * file for every resource on every request. Tracked resources are re-checked in the background every
+ * <code>resourcePollInterval</code> milliseconds (context init param, eg. 2000) and registered
+ * <code>ResourceChangeListener</code>s are notified about modified or deleted resources.
+ * By default the interval is 0 and, with no staleness bound either (see below), the registry is disabled: the file
+ * system is read on every call and a changed file is seen by the very next request, as before the registry existed.
+ * </p>
+ * <p>
+ * Optionally, metadata can be kept at most <code>resourceMaxStaleness</code> milliseconds old (context init param,
+ * not bounded by default): metadata looked up after that long is read again from the file system first. Eg. with
+ * 1000, a hot file is stat-ed about once a second whichever the number of requests, and with 0 (development) on every
+ * look up. The registry keeps tracking resources with only the staleness bound set and no polling.
+ * </p>
+ * <p>
+ * Only existing files are tracked. Resources the container could not find either (see {@link #markMissing(String)})
+ * are remembered as missing (at most 1024 of them) for <code>missingResourceTtl</code> milliseconds (context init
+ * param, default 5000) or until the file gets created, so that repeated requests for non existing resources do not hit
+ * the file system or container every time. A resource with no file at its real path is not missing by itself, the
+ * container may still serve it from elsewhere, eg. <code>META-INF/resources</code> of a jar.
+ * </p>
+ * <p>
+ * With context init param <code>eTagMode</code> set to <code>content</code>, ETags are built from digests of the
+ * contents instead of last modified time and length, so that every node of a cluster produces the same ETag for the
+ * same file. Digests are computed once per version (last modified time and length) of a file and kept in memory.
+ * </p>
+ * <p>
+ * Validators of a CSS file also consider the images it refers, see <code>CssDependencyGraph</code>.
+ * </p>
+ * <p>
+ * Polling runs in a daemon thread of each web application, stopped once it is destroyed, see
+ * {@link #destroy(ServletContext)}.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ * @see ResourceMetadata
+ */
+public final class ResourceMetadataRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceMetadataRegistry.class.getName());
+
+    public static final String INIT_PARAM_POLL_INTERVAL = "resourcePollInterval";
+
+    public static final long DEFAULT_POLL_INTERVAL = 0;
+
+    public static final String INIT_PARAM_MAX_STALENESS = "resourceMaxStaleness";
+
+    public static final long DEFAULT_MAX_STALENESS = -1;
+
+    public static final String INIT_PARAM_ETAG_MODE = "eTagMode";
+
+    public static final String ETAG_MODE_CONTENT = "content";
+
+    public static final String INIT_PARAM_MISSING_RESOURCE_TTL = "missingResourceTtl";
+
+    public static final long DEFAULT_MISSING_RESOURCE_TTL = 5000;
+
+    static final int MAX_MISSING_RESOURCES = 1024;
+
+    private static final String CONTEXT_ATTR = ResourceMetadataRegistry.class.getName();
+
+    private final ServletContext context;
+
+    private final long pollInterval;
+
+    private final long maxStaleness;
+
+    /**
+     * Whether resources are tracked (polled or checked for staleness) or read every time
+     */
+    private final boolean tracking;
+
+    private final ConcurrentMap<String, ResourceMetadata> resources = new ConcurrentHashMap<String, ResourceMetadata>();
+
+    private final CopyOnWriteArrayList<ResourceChangeListener> listeners = new CopyOnWriteArrayList<ResourceChangeListener>();
+
+    private final boolean contentETags;
+
+    private final long missingResourceTtl;
+
+    /**
+     * Resources known to be missing, least recently looked up are forgotten first
+     */
+    private final Map<String, MissingResource> missingResources = new LinkedHashMap<String, MissingResource>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MissingResource> eldest) {
+            return size() > MAX_MISSING_RESOURCES;
+        }
+    };
+
+    /**
+     * Content digests by real path, along with the version of the file they were computed for
+     */
+    private final ConcurrentMap<String, ContentDigest> contentDigests = new ConcurrentHashMap<String, ContentDigest>();
+
+    private final CssDependencyGraph dependencyGraph = new CssDependencyGraph();
+
+    /**
+     * Daemon thread of this web application polling its resources, null if not polled
+     */
+    private PollTask pollTask; //guarded by class
+
+    private ResourceMetadataRegistry(ServletContext context, long pollInterval, long maxStaleness, boolean contentETags, long missingResourceTtl) {
+        this.context = context;
+        this.pollInterval = pollInterval;
+        this.maxStaleness = maxStaleness;
+        this.tracking = pollInterval > 0 || maxStaleness >= 0;
+        this.contentETags = contentETags;
+        if (!tracking) {
+            missingResourceTtl = 0;
+        } else if (maxStaleness >= 0) { //missing ones must not get staler either
+            missingResourceTtl = Math.min(missingResourceTtl, maxStaleness);
+        }
+        this.missingResourceTtl = missingResourceTtl;
+    }
+
+    /**
+     * @param context - servlet context
+     * @return registry for the web application, created on first call
+     */
+    public static ResourceMetadataRegistry getInstance(ServletContext context) {
+        Object registry = context.getAttribute(CONTEXT_ATTR);
+        if (registry instanceof ResourceMetadataRegistry) {
+            return (ResourceMetadataRegistry) registry;
+        }
+        synchronized (ResourceMetadataRegistry.class) {
+            registry = context.getAttribute(CONTEXT_ATTR);
+            if (registry instanceof ResourceMetadataRegistry) {
+                return (ResourceMetadataRegistry) registry;
+            }
+            long pollInterval = Utils.readLong(context.getInitParameter(INIT_PARAM_POLL_INTERVAL), DEFAULT_POLL_INTERVAL);
+            long maxStaleness = Utils.readLong(context.getInitParameter(INIT_PARAM_MAX_STALENESS), DEFAULT_MAX_STALENESS);
+            boolean contentETags = ETAG_MODE_CONTENT.equalsIgnoreCase(context.getInitParameter(INIT_PARAM_ETAG_MODE));
+            long missingResourceTtl = Utils.readLong(context.getInitParameter(INIT_PARAM_MISSING_RESOURCE_TTL), DEFAULT_MISSING_RESOURCE_TTL);
+            ResourceMetadataRegistry newRegistry = new ResourceMetadataRegistry(context, pollInterval, maxStaleness, contentETags, missingResourceTtl);
+            if (pollInterval > 0) {
+                //a timer of its own, not to outlive the web application in a thread shared with others
+                String name = context.getServletContextName();
+                Timer timer = new Timer(ResourceMetadataRegistry.class.getSimpleName() + (name != null ? " " + name : ""), true);
+                newRegistry.pollTask = new PollTask(newRegistry, timer);
+                timer.schedule(newRegistry.pollTask, pollInterval, pollInterval);
+            }
+            context.setAttribute(CONTEXT_ATTR, newRegistry);
+            LOGGER.debug("Resource metadata registry initialized with {}:{}, {}:{}, {}:{}", new Object[]{INIT_PARAM_POLL_INTERVAL, pollInterval,
+                INIT_PARAM_MAX_STALENESS, maxStaleness, INIT_PARAM_ETAG_MODE, contentETags ? ETAG_MODE_CONTENT : "lastModified"});
+            return newRegistry;
+        }
+    }
+
+    /**
+     * Stops polling resources of the web application and removes its registry from the context, to be called once the
+     * web application is destroyed. Filters and servlets of the library call it when they are destroyed, and so does
+     * {@link ResourceMetadataRegistryListener}, whichever comes first.
+     *
+     * @param context - servlet context
+     */
+    public static void destroy(ServletContext context) {
+        synchronized (ResourceMetadataRegistry.class) {
+            Object registry = context.getAttribute(CONTEXT_ATTR);
+            context.removeAttribute(CONTEXT_ATTR);
+            if (registry instanceof ResourceMetadataRegistry && ((ResourceMetadataRegistry) registry).pollTask != null) {
+                ((ResourceMetadataRegistry) registry).pollTask.stop();
+                LOGGER.debug("Resource metadata registry destroyed");
+            }
+        }
+    }
+
+    /**
+     * @param relativePath - context relative path of the resource
+     * @return metadata of the resource, null if it is not an existing file
+     */
+    public ResourceMetadata get(String relativePath) {
+        if (relativePath == null) return null;
+        ResourceMetadata metadata = resources.get(relativePath);
+        if (metadata != null) {
+            if (maxStaleness >= 0 && System.currentTimeMillis() - metadata.getCheckedAt() >= maxStaleness) {
+                return refresh(relativePath, metadata);
+            }
+            return metadata;
+        }
+        if (isMissing(relativePath)) {
+            return null;
+        }
+        String realPath = context.getRealPath(relativePath);
+        metadata = ResourceMetadata.read(realPath);
+        if (metadata != null && tracking) { //no file there is not missing, see markMissing
+            ResourceMetadata existing = resources.putIfAbsent(relativePath, metadata);
+            if (existing != null) {
+                metadata = existing;
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Re-reads metadata of a resource known to be changed, notifying listeners if it differs.
+     *
+     * @param relativePath - context relative path of the resource
+     */
+    public void invalidate(String relativePath) {
+        synchronized (missingResources) {
+            missingResources.remove(relativePath);
+        }
+        ResourceMetadata metadata = resources.get(relativePath);
+        if (metadata != null) {
+            refresh(relativePath, metadata);
+        }
+    }
+
+    /**
+     * @param relativePath - context relative path of the resource
+     * @return true if the resource was recently found missing and has not been created since
+     */
+    public boolean isMissing(String relativePath) {
+        if (missingResourceTtl <= 0) return false;
+        synchronized (missingResources) {
+            MissingResource missingResource = missingResources.get(relativePath);
+            if (missingResource == null) return false;
+            if (missingResource.expiresAt > System.currentTimeMillis()) return true;
+            missingResources.remove(relativePath);
+            return false;
+        }
+    }
+
+    /**
+     * Remembers a resource which the container could not find (eg. <code>getResourceAsStream</code> returned null).
+     *
+     * @param relativePath - context relative path of the resource
+     */
+    public void markMissing(String relativePath) {
+        markMissing(relativePath, context.getRealPath(relativePath));
+    }
+
+    private void markMissing(String relativePath, String realPath) {
+        if (missingResourceTtl <= 0) return;
+        synchronized (missingResources) {
+            missingResources.put(relativePath, new MissingResource(realPath, System.currentTimeMillis() + missingResourceTtl));
+        }
+    }
+
+    /**
+     * @return true if ETags are to be built from contents rather than last modified time and length
+     */
+    public boolean isContentETags() {
+        return contentETags;
+    }
+
+    /**
+     * @param metadata - metadata of the file
+     * @return hex MD5 digest of the file contents, computed once per version of the file, null if it can not be read
+     */
+    public String getContentDigest(ResourceMetadata metadata) {
+        if (metadata == null) return null;
+        ContentDigest contentDigest = contentDigests.get(metadata.getRealPath());
+        if (contentDigest != null && contentDigest.metadata.isSameVersion(metadata)) {
+            return contentDigest.value;
+        }
+        String value = digest(metadata.getRealPath());
+        if (value != null) {
+            contentDigests.put(metadata.getRealPath(), new ContentDigest(metadata, value));
+        }
+        return value;
+    }
+
+    private static String digest(String realPath) {
+        MessageDigest md5Digest = Utils.md5Digest();
+        if (md5Digest == null) return null;
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(realPath);
+            byte[] buffer = new byte[8192];
+            int c;
+            while ((c = inputStream.read(buffer)) != -1) {
+                md5Digest.update(buffer, 0, c);
+            }
+            return Utils.toHexString(md5Digest.digest());
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to digest contents of {}", realPath, ex);
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @return images referred by CSS files of the web application and vice versa
+     */
+    public CssDependencyGraph getDependencyGraph() {
+        return dependencyGraph;
+    }
+
+    /**
+     * @return true if tracked resources are polled at least as often as their metadata may get stale, so that
+     *         listeners learn of every change of them in time and can be relied upon instead of looking metadata up
+     */
+    public boolean isChangeNotified() {
+        return pollInterval > 0 && (maxStaleness < 0 || pollInterval <= maxStaleness);
+    }
+
+    public void addListener(ResourceChangeListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(ResourceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return number of resources being tracked
+     */
+    public int size() {
+        return resources.size();
+    }
+
+    private void poll() {
+        for (Map.Entry<String, ResourceMetadata> entry : resources.entrySet()) {
+            refresh(entry.getKey(), entry.getValue());
+        }
+        forgetCreated();
+    }
+
+    /**
+     * Forgets missing resources which got created (or expired) since
+     */
+    private void forgetCreated() {
+        List<Map.Entry<String, MissingResource>> entries;
+        synchronized (missingResources) {
+            if (missingResources.isEmpty()) return;
+            entries = new ArrayList<Map.Entry<String, MissingResource>>(missingResources.entrySet());
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, MissingResource> entry : entries) {
+            MissingResource missingResource = entry.getValue();
+            if (missingResource.expiresAt <= now || (missingResource.realPath != null && new File(missingResource.realPath).exists())) {
+                synchronized (missingResources) {
+                    if (missingResources.get(entry.getKey()) == missingResource) {
+                        missingResources.remove(entry.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param relativePath - context relative path of the resource
+     * @param current      - metadata being tracked
+     * @return latest metadata, null if the resource has been deleted
+     */
+    private ResourceMetadata refresh(String relativePath, ResourceMetadata current) {
+        ResourceMetadata latest = ResourceMetadata.read(current.getRealPath());
+        boolean modified = !current.isSameVersion(latest);
+        boolean updated = latest != null ? resources.replace(relativePath, current, latest) : resources.remove(relativePath, current);
+        if (!updated || !modified) return latest; //if changed concurrently, whoever did it notifies
+        if (latest == null) {
+            contentDigests.remove(current.getRealPath());
+            dependencyGraph.remove(relativePath);
+        }
+        LOGGER.debug("Resource {} {}", relativePath, latest != null ? "modified" : "deleted");
+        for (ResourceChangeListener listener : listeners) {
+            try {
+                listener.resourceChanged(relativePath, latest);
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Resource change listener failed: {}", listener, ex);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Digest of file contents along with the version of the file it was computed for
+     */
+    private static class ContentDigest {
+
+        private final ResourceMetadata metadata;
+
+        private final String value;
+
+        ContentDigest(ResourceMetadata metadata, String value) {
+            this.metadata = metadata;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Resource known to be missing, until it expires
+     */
+    private static class MissingResource {
+
+        private final String realPath;
+
+        private final long expiresAt;
+
+        MissingResource(String realPath, long expiresAt) {
+            this.realPath = realPath;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Refers the registry weakly so that it can go away along with its web application, even if not destroyed.
+     */
+    private static class PollTask extends TimerTask {
+
+        private final WeakReference<ResourceMetadataRegistry> registryReference;
+
+        private final Timer timer;
+
+        PollTask(ResourceMetadataRegistry registry, Timer timer) {
+            this.registryReference = new WeakReference<ResourceMetadataRegistry>(registry);
+            this.timer = timer;
+        }
+
+        @Override
+        public void run() {
+            ResourceMetadataRegistry registry = registryReference.get();
+            if (registry == null) {
+                stop();
+                return;
+            }
+            try {
+                registry.poll();
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Failed to poll resources for changes.", ex);
+            }
+        }
+
+        void stop() {
+            timer.cancel(); //lets the thread die
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.util;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Stops polling resources of the web application once it is destroyed, see
+ * {@link ResourceMetadataRegistry#destroy(javax.servlet.ServletContext)}.
+ * <p>
+ * Registered by the tag library descriptor of the jar (<code>META-INF/wu.tld</code>) with containers scanning it,
+ * otherwise add it to <code>web.xml</code>:
+ * </p>
+ * <pre>
+ * &lt;listener&gt;
+ * 	&lt;listener-class&gt;com.googlecode.webutilities.util.ResourceMetadataRegistryListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class ResourceMetadataRegistryListener implements ServletContextListener {
+
+    public void contextInitialized(ServletContextEvent event) {
+        //registry is created on first use
+    }
+
+    public void contextDestroyed(ServletContextEvent event) {
+        ResourceMetadataRegistry.destroy(event.getServletContext());
+    }
+
+}
@@ -17,18 +17,18 @@
 package com.googlecode.webutilities.util;
 
 import javax.servlet.ServletContext;
-import java.io.*;
-import java.net.URLConnection;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.regex.Matcher;
 
 import static com.googlecode.webutilities.common.Constants.*;
 
@@ -45,8 +45,32 @@ public final class Utils {
   private static final String FINGERPRINT_SEPARATOR = "_wu_";
 
   private static final String PATH_ROOT = "/";
-  private static final String PATH_CURRENT = "./";
-  private static final String PATH_PARENT = "../";
+
+  private static final String[] ETAG_ENCODING_SUFFIXES = {"-" + CONTENT_ENCODING_GZIP, "-" + CONTENT_ENCODING_BROTLI};
+
+  /**
+   * Resolved resources by request URI (without fingerprint), at most this many per web application
+   */
+  private static final int MAX_RESOLVED_RESOURCES = 1024;
+
+  private static final String RESOLVED_RESOURCES_ATTR = Utils.class.getName() + ".resolvedResources";
+
+  private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+  /**
+   * MessageDigest look ups are costly and instances are not thread safe, one per thread is kept
+   */
+  private static final ThreadLocal<MessageDigest> MD5_DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException ex) {
+        LOGGER.warn("Unable to use MD5 for digesting.", ex);
+        return null;
+      }
+    }
+  };
 
   /**
    * @param string       string representation of a int which is to be parsed and read from
@@ -129,19 +153,24 @@ public final class Utils {
 
   /**
    * @param filePath - path of the file, whose mime is to be detected
-   * @return contentType - mime type of the file
+   * @return contentType - mime type of the file, by the bundled MIME types
+   * @see MimeRegistry
    */
   public static String selectMimeByFile(String filePath) {
+    return selectMimeByFile(filePath, null);
+  }
+
+  /**
+   * @param filePath - path of the file, whose mime is to be detected
+   * @param context  - servlet context whose MIME types are used, null for the bundled ones only
+   * @return contentType - mime type of the file
+   * @see MimeRegistry
+   */
+  public static String selectMimeByFile(String filePath, ServletContext context) {
     if (filePath == null) return null;
-    if (filePath.toLowerCase().endsWith(EXT_JS)) {
-      return MIME_JS;
-    } else if (filePath.toLowerCase().endsWith(EXT_CSS)) {
-      return MIME_CSS;
-    } else if (filePath.toLowerCase().endsWith(EXT_JSON)) {
-      return MIME_JSON;
-    }
-    String guess = URLConnection.guessContentTypeFromName(filePath);
-    return guess != null ? guess : MIME_OCTET_STREAM;
+    MimeRegistry registry = context != null ? MimeRegistry.getInstance(context) : MimeRegistry.getInstance();
+    String mime = registry.getMimeType(filePath);
+    return mime != null ? mime : MIME_OCTET_STREAM;
   }
 
   /**
@@ -149,46 +178,60 @@ public final class Utils {
    * @return - mime like text/javascript or text/css etc.
    */
   public static String selectMimeForExtension(String extensionOrFile) {
-    if (EXT_JS.equals(extensionOrFile)) {
-      return MIME_JS;
-    } else if (EXT_CSS.equals(extensionOrFile)) {
-      return MIME_CSS;
-    } else if (EXT_JSON.equals(extensionOrFile)) {
-      return MIME_JSON;
-    } else {
-      return Utils.selectMimeByFile(extensionOrFile);
-    }
+    return Utils.selectMimeByFile(extensionOrFile);
+  }
+
+  /**
+   * @param extensionOrFile - .js or .css etc. of full file path in case of image files
+   * @param context         - servlet context whose MIME types are used, null for the bundled ones only
+   * @return - mime like text/javascript or text/css etc.
+   */
+  public static String selectMimeForExtension(String extensionOrFile, ServletContext context) {
+    return Utils.selectMimeByFile(extensionOrFile, context);
   }
 
-  //!TODO might have problems, need to test or replace with something better
+  /**
+   * Resolves a path against its parent, without any regular expression work. Empty and <code>.</code> segments are
+   * dropped and <code>..</code> segments go up a level (never above root), anywhere in the path.
+   *
+   * @param parentPath             - path to resolve against, root if null
+   * @param relativePathFromParent - absolute path or path relative to the parent
+   * @return normalized absolute path, with a trailing slash only if the relative path ends with one
+   */
   public static String buildProperPath(String parentPath, String relativePathFromParent) {
     if (relativePathFromParent == null) return null;
-    if (parentPath != null) {
-      parentPath = parentPath.trim();
+    StringBuilder path = new StringBuilder((parentPath != null ? parentPath.length() : 0) + relativePathFromParent.length() + 1);
+    if (parentPath != null && !relativePathFromParent.startsWith(PATH_ROOT)) {
+      appendSegments(path, parentPath.trim());
     }
-
-    if (relativePathFromParent.startsWith(PATH_CURRENT)) {
-      relativePathFromParent = relativePathFromParent.replaceFirst("(./)+", "");
+    appendSegments(path, relativePathFromParent);
+    if (path.length() == 0 || relativePathFromParent.endsWith(PATH_ROOT)) {
+      path.append('/');
     }
+    return path.toString();
+  }
 
-    String path;
-
-    if (relativePathFromParent.startsWith(PATH_ROOT)) { //absolute
-      path = relativePathFromParent;
-    } else if (relativePathFromParent.startsWith(PATH_PARENT)) {
-      while (relativePathFromParent.startsWith(PATH_PARENT)) {
-        relativePathFromParent = relativePathFromParent.replaceFirst(PATH_PARENT, "");
-        if (relativePathFromParent.startsWith(PATH_CURRENT)) {
-          relativePathFromParent = relativePathFromParent.replaceFirst(PATH_CURRENT, "");
-        }
-        parentPath = (parentPath == null || parentPath.equals(PATH_ROOT)) ? PATH_ROOT : getParentPath(parentPath);
+  /**
+   * @param path     - normalized path to append to, without trailing slash
+   * @param segments - slash separated segments to append
+   */
+  private static void appendSegments(StringBuilder path, String segments) {
+    int length = segments.length();
+    int start = 0;
+    while (start <= length) {
+      int end = segments.indexOf('/', start);
+      if (end < 0) {
+        end = length;
       }
-      path = parentPath + PATH_ROOT + relativePathFromParent;
-    } else {
-      path = parentPath + PATH_ROOT + relativePathFromParent;
+      int segmentLength = end - start;
+      if (segmentLength == 2 && segments.charAt(start) == '.' && segments.charAt(start + 1) == '.') {
+        int parentEnd = path.lastIndexOf(PATH_ROOT);
+        path.setLength(parentEnd > 0 ? parentEnd : 0);
+      } else if (segmentLength > 1 || (segmentLength == 1 && segments.charAt(start) != '.')) {
+        path.append('/').append(segments, start, end);
+      }
+      start = end + 1;
     }
-
-    return path.replaceAll("(/|\\./)+", "$1");
   }
 
   /**
@@ -197,13 +240,9 @@ public final class Utils {
    * @param resourceRealPath - file path, whose has to be calculated
    * @return - hash string as lastmodified#size
    */
-  private static String simpleHashOf(String resourceRealPath) {
-    if (resourceRealPath == null) return null;
-    File resource = new File(resourceRealPath);
-    if (!resource.exists()) return null;
-    long lastModified = resource.lastModified();
-    long size = resource.length();
-    return String.format("%s#%s", lastModified, size);
+  private static String simpleHashOf(ResourceMetadata resource) {
+    if (resource == null) return null;
+    return String.format("%s#%s", resource.getLastModified(), resource.getLength());
   }
 
   /**
@@ -217,12 +256,43 @@ public final class Utils {
    * http://server/context/js/a,/js/libs/b,/js/yui/c.js - absolutes paths for all OR
    * http://server/context/js/a,/js/libs/b,../yui/c.js - relative path used for c.js (relative to b) OR
    * http://server/context/js/a,/js/libs/b,./c.js OR - b & c are in same directory /js/libs
+   * <p/>
+   * Resolves the URI every time, see {@link #findResourcesToMerge(String, String, ServletContext)} to keep the result.
    *
    * @param contextPath request Context Path
-   * @param requestURI  requestURI
-   * @return Set of resources to be processed
+   * @param requestURI  requestURI, without fingerprint
+   * @return unmodifiable list of resources to be processed
    */
   public static List<String> findResourcesToMerge(String contextPath, String requestURI) {
+    if (contextPath == null) {
+      contextPath = "";
+    }
+    return Collections.unmodifiableList(resolveResources(contextPath, requestURI));
+  }
+
+  /**
+   * Same as {@link #findResourcesToMerge(String, String)}, but each distinct URI is resolved once, the result is kept
+   * in the servlet context for the most recently used 1024 URIs.
+   *
+   * @param contextPath request Context Path
+   * @param requestURI  requestURI, without fingerprint
+   * @param context     servlet context of the web application
+   * @return unmodifiable list of resources to be processed
+   */
+  public static List<String> findResourcesToMerge(String contextPath, String requestURI, ServletContext context) {
+    if (contextPath == null) {
+      contextPath = "";
+    }
+    ResolvedResources resolved = ResolvedResources.of(context);
+    List<String> resources = resolved.get(contextPath, requestURI);
+    if (resources == null) {
+      resources = Collections.unmodifiableList(resolveResources(contextPath, requestURI));
+      resolved.put(contextPath, requestURI, resources);
+    }
+    return resources;
+  }
+
+  private static List<String> resolveResources(String contextPath, String requestURI) {
 
     String extension = Utils.detectExtension(requestURI);
 
@@ -230,24 +300,30 @@ public final class Utils {
       extension = "";
     }
 
-    requestURI = requestURI.replace(contextPath, "");//.replace(extension, "");//remove the context path & ext. will become /path/subpath/a,b,/anotherpath/c
-    requestURI = requestURI.substring(0, requestURI.lastIndexOf(extension));
-
-    String[] resourcesPath = requestURI.split(",");
+    int start = requestURI.startsWith(contextPath) ? contextPath.length() : 0; //will become /path/subpath/a,b,/anotherpath/c
+    int end = requestURI.lastIndexOf(extension);
 
     List<String> resources = new ArrayList<String>();
+    Set<String> added = new HashSet<String>();
 
     String currentPath = PATH_ROOT; //default
 
-    for (String filePath : resourcesPath) {
-
-      String path = Utils.buildProperPath(currentPath, filePath) + extension;
-      if (filePath == null) continue;
-
-      currentPath = getParentPath(path);
-      if (!resources.contains(path)) {
-        resources.add(path);
+    while (start < end) {
+      int comma = requestURI.indexOf(',', start);
+      if (comma < 0 || comma > end) {
+        comma = end;
+      }
+      if (comma > start) {
+        String path = Utils.buildProperPath(currentPath, requestURI.substring(start, comma)) + extension;
+        currentPath = getParentPath(path);
+        if (added.add(path)) {
+          resources.add(path);
+        }
       }
+      start = comma + 1;
+    }
+    if (resources.isEmpty()) {
+      resources.add(PATH_ROOT + extension);
     }
     return resources;
   }
@@ -259,11 +335,11 @@ public final class Utils {
    * @return true if any of the resources is modified since given time, false otherwise
    */
   public static boolean isAnyResourceModifiedSince(List<String> resources, long sinceTime, ServletContext servletContext) {
+    ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(servletContext);
     for (String resourcePath : resources) {
-      resourcePath = servletContext.getRealPath(resourcePath);
-      if (resourcePath == null) continue;
-      File resource = new File(resourcePath);
-      long lastModified = resource.lastModified();
+      ResourceMetadata resource = registry.get(resourcePath);
+      if (resource == null) continue;
+      long lastModified = lastModifiedOf(resourcePath, resource, registry);
       if (lastModified > sinceTime) {
         return true;
       }
@@ -271,6 +347,18 @@ public final class Utils {
     return false;
   }
 
+  /**
+   * HTTP dates have no milliseconds, so a resource is modified since the date only if it is modified in a later second.
+   *
+   * @param resources      - list of resources paths
+   * @param httpDate       - time parsed from If-Modified-Since header
+   * @param servletContext - servlet context
+   * @return true if any of the resources is modified after the second of given time, false otherwise
+   */
+  public static boolean isAnyResourceModifiedSinceHttpDate(List<String> resources, long httpDate, ServletContext servletContext) {
+    return isAnyResourceModifiedSince(resources, httpDate - httpDate % 1000 + 999, servletContext);
+  }
+
   /**
    * @param resources      - list of resources paths
    * @param servletContext - servlet context
@@ -278,11 +366,11 @@ public final class Utils {
    */
   public static long getLastModifiedFor(List<String> resources, ServletContext servletContext) {
     long lastModified = 0;
+    ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(servletContext);
     for (String resourcePath : resources) {
-      resourcePath = servletContext.getRealPath(resourcePath);
-      if (resourcePath == null) continue;
-      File resource = new File(resourcePath);
-      long resourceLastModified = resource.lastModified();
+      ResourceMetadata resource = registry.get(resourcePath);
+      if (resource == null) continue;
+      long resourceLastModified = lastModifiedOf(resourcePath, resource, registry);
       if (resourceLastModified > lastModified) {
         lastModified = resourceLastModified;
       }
@@ -302,12 +390,24 @@ public final class Utils {
       actualETag = buildETagForResources(resources, servletContext);
     }
     if (requestETag != null && actualETag != null) {
-      requestETag = requestETag.replace("-gzip", "");//might have been added by gzip filter
-      return !requestETag.equals(actualETag);
+      return !withoutEncodingSuffix(requestETag).equals(actualETag);
     }
     return true;
   }
 
+  /**
+   * @param eTag - ETag, might end with the content encoding added by gzip filter or precompressed variant
+   * @return ETag without the -gzip or -br suffix, anywhere else in it left as is
+   */
+  public static String withoutEncodingSuffix(String eTag) {
+    for (String suffix : ETAG_ENCODING_SUFFIXES) {
+      if (eTag.endsWith(suffix)) {
+        return eTag.substring(0, eTag.length() - suffix.length());
+      }
+    }
+    return eTag;
+  }
+
 
   /**
    * @param resourcesRelativePath - list of resources
@@ -323,159 +423,126 @@ public final class Utils {
     return hashForETag.length() > 0 ? (resourcesRelativePath.size() > 2 ? hexDigestString(hashForETag.getBytes()) : hashForETag) : null;
   }
 
-  /**
-   * @param cssFilePath - css file path
-   * @param imgFilePath - img file path
-   * @return true if all goes well and paths are touched, false otherwise
-   */
-  public static boolean updateReferenceMap(String cssFilePath, String imgFilePath) {
-    if (imgFilePath != null) {
-      File imgFile = new File(imgFilePath);
-      List<String> referencesList = CSS_IMG_REFERENCES.get(cssFilePath);
-      if (imgFile.isFile() && imgFile.exists()) {
-        if (referencesList == null) {
-          referencesList = new LinkedList<String>();
-          referencesList.add(imgFilePath);
-          CSS_IMG_REFERENCES.put(cssFilePath, referencesList);
-        }
-        if (!referencesList.contains(imgFilePath)) {
-          referencesList.add(imgFilePath);
-        }
-        File cssFile = new File(cssFilePath);
-        if (cssFile.lastModified() < imgFile.lastModified()) { //means img got modified after css
-          //so touch css file
-          return cssFile.setLastModified(new Date().getTime());
-        }
-      } else if (referencesList != null) {
-        referencesList.remove(imgFilePath);
-      }
-    }
-    return false;
-  }
-
   public static boolean isProtocolURL(String url) {
     return url != null && url.trim().length() != 0 && url.matches("^[a-z0-9\\+\\.\\-]+:.*$");
   }
 
   /**
+   * ETag of a CSS file depends on the images it refers too, as their fingerprints are part of the served CSS.
+   *
    * @param relativePath - relative path of res
    * @param context      - servlet context
    * @return ETag string
    */
   public static String buildETagForResource(String relativePath, ServletContext context) {
-    String hashForETag = ":";
-    String realPath = context.getRealPath(relativePath);
-    if (realPath == null) return null;
-    File realFile = new File(realPath);
-    if (!realFile.isFile() || !realFile.exists()) return null;
-    if (realPath.endsWith(EXT_CSS)) { // check if any image references by this css has been modified or not
-      long cssLastModified = realFile.lastModified();
-
-      List<String> referencedImages = CSS_IMG_REFERENCES.get(realPath);
-
-      if (referencedImages != null) {
-        for (String referenceImage : referencedImages) {
-          File imgFile = new File(referenceImage);
-          if (imgFile.isFile() && imgFile.exists()) {
-            if (cssLastModified < imgFile.lastModified()) { //means ref img got modified after css
-              //so touch css file
-              realFile.setLastModified(new Date().getTime());
-              break;
-            }
-          }
-        }
-
-      } else {
-
-        BufferedReader bufferedReader;
-        try {
-          bufferedReader = new BufferedReader(new FileReader(realPath));
-          String line;
-          while ((line = bufferedReader.readLine()) != null) {
-            Matcher matcher = CSS_IMG_URL_PATTERN.matcher(line);
-            while (matcher.find()) {
-              String refImgPath = matcher.group(1);
-              if (!Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
-                String resolvedImgPath = refImgPath;
-                if (!refImgPath.startsWith(PATH_ROOT)) {
-                  resolvedImgPath = Utils.buildProperPath(Utils.getParentPath(realPath), refImgPath);
-                }
-
-                if (updateReferenceMap(realPath, resolvedImgPath)) {
-                  break;
-                }
-
-              }
-            }
-          }
-        } catch (FileNotFoundException ex) {
-          LOGGER.warn("File not found.", ex);
-        } catch (IOException ex) {
-          LOGGER.warn("Failed to read/touch {}. ex: {}", realPath, ex);
-        }
-      }
+    ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+    ResourceMetadata resource = registry.get(relativePath);
+    if (resource == null) return null;
+    Set<String> referencedImages = referencedImagesOf(relativePath, resource, registry);
+    if (registry.isContentETags()) {
+      return contentETagOf(resource, referencedImages, registry);
     }
-    String hash = Utils.simpleHashOf(realPath);
-    hashForETag = hashForETag + (hash != null ? ":" + hash : "");
-    return hashForETag.length() > 0 ? hexDigestString(hashForETag.getBytes()) : null;
+    StringBuilder hashForETag = new StringBuilder("::").append(simpleHashOf(resource));
+    for (String referencedImage : referencedImages) {
+      String imageHash = simpleHashOf(registry.get(referencedImage));
+      hashForETag.append(':').append(imageHash != null ? imageHash : "");
+    }
+    return hexDigestString(hashForETag.toString().getBytes());
   }
 
   /**
-   * @param headerDateString - from request header
-   * @return Date object after reading from header string
+   * @param relativePath - relative path of the resource
+   * @param resource     - metadata of the resource
+   * @param registry     - registry holding the dependency graph
+   * @return sorted paths of images referred, if resource is a CSS file
    */
-  public static Date readDateFromHeader(String headerDateString) {
-
-    SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_HTTP_HEADER, DEFAULT_LOCALE_US);
-    try {
-      return simpleDateFormat.parse(headerDateString);
-    } catch (Exception e) {
-      LOGGER.warn("Date parsing using HTTP header pattern failed.");
-    }
+  private static Set<String> referencedImagesOf(String relativePath, ResourceMetadata resource, ResourceMetadataRegistry registry) {
+    if (!relativePath.endsWith(EXT_CSS)) return Collections.emptySet();
+    return registry.getDependencyGraph().getImages(relativePath, resource);
+  }
 
-    //try another rfc1123
-    simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_RFC_1123, DEFAULT_LOCALE_US);
-    try {
-      return simpleDateFormat.parse(headerDateString);
-    } catch (Exception e) {
-      LOGGER.warn("Date parsing using RFC_1123 pattern failed.");
+  /**
+   * @param relativePath - relative path of the resource
+   * @param resource     - metadata of the resource
+   * @param registry     - registry holding the dependency graph
+   * @return last modified time of the resource, or of the latest image referred if it is a CSS file
+   */
+  private static long lastModifiedOf(String relativePath, ResourceMetadata resource, ResourceMetadataRegistry registry) {
+    long lastModified = resource.getLastModified();
+    for (String referencedImage : referencedImagesOf(relativePath, resource, registry)) {
+      ResourceMetadata image = registry.get(referencedImage);
+      if (image != null && image.getLastModified() > lastModified) {
+        lastModified = image.getLastModified();
+      }
     }
+    return lastModified;
+  }
 
-    //try another rfc1036
-    simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_RFC_1036, DEFAULT_LOCALE_US);
-    try {
-      return simpleDateFormat.parse(headerDateString);
-    } catch (Exception e) {
-      LOGGER.warn("Date parsing using RFC_1036 pattern failed.");
+  /**
+   * ETag based on contents only, same on every node serving the same files. For CSS, contents of referred images
+   * are considered too.
+   *
+   * @param resource         - metadata of the resource
+   * @param referencedImages - sorted paths of images referred by the resource
+   * @param registry         - registry caching content digests
+   * @return ETag string, null if contents could not be read
+   */
+  private static String contentETagOf(ResourceMetadata resource, Set<String> referencedImages, ResourceMetadataRegistry registry) {
+    String digest = registry.getContentDigest(resource);
+    if (digest == null || referencedImages.isEmpty()) {
+      return digest;
     }
-
-    //try another ansi
-    simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_ANSI_C, DEFAULT_LOCALE_US);
-    try {
-      return simpleDateFormat.parse(headerDateString);
-    } catch (Exception e) {
-      LOGGER.warn("Date is not even ANSI C pattern.");
+    StringBuilder hashForETag = new StringBuilder(digest);
+    for (String referencedImage : referencedImages) {
+      String imageDigest = registry.getContentDigest(registry.get(referencedImage));
+      hashForETag.append(':').append(imageDigest != null ? imageDigest : "");
     }
+    return hexDigestString(hashForETag.toString().getBytes());
+  }
 
-    return null;
+  /**
+   * @param headerDateString - from request header
+   * @return Date object after reading from header string, null if it is not an HTTP date
+   * @see HttpDateCodec#parse(String)
+   */
+  public static Date readDateFromHeader(String headerDateString) {
+    long time = HttpDateCodec.parse(headerDateString);
+    return time != HttpDateCodec.INVALID ? new Date(time) : null;
   }
 
+  /**
+   * @param time - milliseconds since epoch
+   * @return HTTP header date in GMT
+   * @see HttpDateCodec#format(long)
+   */
   public static String forHeaderDate(long time) {
-    SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_HTTP_HEADER, DEFAULT_LOCALE_US);
-    return simpleDateFormat.format(time);
+    return HttpDateCodec.format(time);
   }
 
   public static String hexDigestString(byte[] data) {
-    MessageDigest md5Digest = null;
-    try {
-      md5Digest = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException ex) {
-      LOGGER.warn("Unable to use MD5 for digesting.", ex);
-    }
+    MessageDigest md5Digest = md5Digest();
     if (md5Digest != null) {
       data = md5Digest.digest(data);
     }
-    final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+    return toHexString(data);
+  }
+
+  /**
+   * @return MD5 digest, reset and reserved for the current thread, null if MD5 is not available
+   */
+  static MessageDigest md5Digest() {
+    MessageDigest md5Digest = MD5_DIGEST.get();
+    if (md5Digest != null) {
+      md5Digest.reset();
+    }
+    return md5Digest;
+  }
+
+  /**
+   * @param data - bytes
+   * @return lower case hex string of the bytes
+   */
+  static String toHexString(byte[] data) {
     char[] hex = new char[2 * data.length];
     for (int i = 0; i < data.length; ++i) {
       hex[2 * i] = HEX_CHARS[(data[i] & 0xF0) >>> 4];
@@ -532,4 +599,57 @@ public final class Utils {
 //  public static void main(String[] args) {
 //    System.out.println(Utils.selectMimeByFile("/Users/rpatil/Documents/workspace/ARCC/js/unittest.js"));
 //  }
+  /**
+   * Resources resolved for the request URIs of a web application, least recently used evicted first
+   */
+  private static final class ResolvedResources extends LinkedHashMap<String, ResolvedResources.Entry> {
+
+    private static final long serialVersionUID = 1L;
+
+    private ResolvedResources() {
+      super(16, 0.75f, true);
+    }
+
+    static ResolvedResources of(ServletContext context) {
+      Object resolved = context.getAttribute(RESOLVED_RESOURCES_ATTR);
+      if (resolved instanceof ResolvedResources) {
+        return (ResolvedResources) resolved;
+      }
+      synchronized (ResolvedResources.class) {
+        resolved = context.getAttribute(RESOLVED_RESOURCES_ATTR);
+        if (!(resolved instanceof ResolvedResources)) {
+          resolved = new ResolvedResources();
+          context.setAttribute(RESOLVED_RESOURCES_ATTR, resolved);
+        }
+        return (ResolvedResources) resolved;
+      }
+    }
+
+    synchronized List<String> get(String contextPath, String requestURI) {
+      Entry entry = get(requestURI);
+      return entry != null && entry.contextPath.equals(contextPath) ? entry.resources : null;
+    }
+
+    synchronized void put(String contextPath, String requestURI, List<String> resources) {
+      put(requestURI, new Entry(contextPath, resources));
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_RESOLVED_RESOURCES;
+    }
+
+    static final class Entry {
+
+      final String contextPath;
+
+      final List<String> resources;
+
+      Entry(String contextPath, List<String> resources) {
+        this.contextPath = contextPath;
+        this.resources = resources;
+      }
+    }
+  }
+
 }
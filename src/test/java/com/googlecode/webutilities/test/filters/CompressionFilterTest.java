@@ -62,6 +62,13 @@ public class CompressionFilterTest {
                 webMockObjectFactory.getMockFilterConfig().setInitParameter(keyAndValue[0], keyAndValue[1]);
             }
         }
+        value = properties.getProperty(this.currentTestNumber + ".test.servlet.init.params");
+        if (value != null && !value.trim().equals("")) {
+            for (String param : value.split(",")) {
+                String[] keyAndValue = param.split(":");
+                webMockObjectFactory.getMockServletConfig().setInitParameter(keyAndValue[0], keyAndValue[1]);
+            }
+        }
 
     }
 
@@ -74,6 +81,12 @@ public class CompressionFilterTest {
                 webMockObjectFactory.getMockServletContext().setResourceAsStream(resource, this.getClass().getResourceAsStream(resource));
             }
         }
+        String realPathsString = properties.getProperty(this.currentTestNumber + ".test.realpaths");
+        if (realPathsString != null && !realPathsString.trim().equals("")) {
+            for (String resource : realPathsString.split(",")) {
+                webMockObjectFactory.getMockServletContext().setRealPath(resource, this.getClass().getResource(resource).getFile());
+            }
+        }
     }
 
     private void setUpRequest() {
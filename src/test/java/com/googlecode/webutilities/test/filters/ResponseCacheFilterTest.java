@@ -112,6 +112,7 @@ public class ResponseCacheFilterTest {
             String[] uriAndQuery = requestURI.split("\\?");
             webMockObjectFactory.getMockRequest().setRequestURI(uriAndQuery[0]);
             if (uriAndQuery.length > 1) {
+                webMockObjectFactory.getMockRequest().setQueryString(uriAndQuery[1]);
                 String[] params = uriAndQuery[1].split("&");
                 for (String param : params) {
                     String[] nameValue = param.split("=");
@@ -124,7 +125,7 @@ public class ResponseCacheFilterTest {
         if (headers != null && !headers.trim().equals("")) {
             String[] headersString = headers.split("&");
             for (String header : headersString) {
-                String[] nameValue = header.split("=");
+                String[] nameValue = header.split("=", 2);
                 if (nameValue.length == 2 && nameValue[1].contains("hashOf")) {
                     String res = nameValue[1].replaceAll(".*hashOf\\s*\\((.*)\\).*", "$1");
                     nameValue[1] = Utils.buildETagForResource(res, webMockObjectFactory.getMockServletContext());
@@ -152,6 +153,11 @@ public class ResponseCacheFilterTest {
 
         servletTestModule = new ServletTestModule(webMockObjectFactory);
 
+        if (Boolean.parseBoolean(properties.getProperty(this.currentTestNumber + ".test.filter.new"))) {
+            responseCacheFilter.destroy();
+            responseCacheFilter = new ResponseCacheFilter(); // starts with an empty cache, bounded by its init params
+        }
+
         this.setUpInitParams();
 
         servletTestModule.setServlet(jscssMergeServlet, true);
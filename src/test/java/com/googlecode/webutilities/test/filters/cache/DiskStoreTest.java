@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.filters.cache;
+
+import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
+import com.googlecode.webutilities.filters.cache.CachedResponse;
+import com.googlecode.webutilities.filters.cache.DiskStore;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class DiskStoreTest {
+
+    private File directory;
+
+    private DiskStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("webutilities-disk-store", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null) {
+            store.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static CachedResponse response(String body) throws IOException {
+        WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(new MockHttpServletResponse());
+        wrapper.setContentType("text/css");
+        wrapper.setHeader("ETag", "\"" + body.hashCode() + "\"");
+        wrapper.getOutputStream().write(body.getBytes());
+        return CachedResponse.of(wrapper, 0, null);
+    }
+
+    private static String read(CachedResponse response) throws IOException {
+        Assert.assertNotNull(response);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.writeBody(out);
+        return out.toString();
+    }
+
+    private DiskStore reopen(long maxBytes) throws IOException {
+        store.close();
+        store = new DiskStore(directory, maxBytes);
+        return store;
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        store = new DiskStore(directory, 0);
+        Assert.assertTrue(store.put("/a.css", response("a body")));
+        Assert.assertTrue(store.put("/b.css", response("b body")));
+        Assert.assertTrue(store.put("/c.css", response("c body")));
+        Assert.assertEquals("a body", read(store.get("/a.css"))); // served while waiting to be written
+        store.flush();
+        store.remove("/b.css");
+        store.put("/c.css", response("new c body"));
+
+        reopen(0);
+        Assert.assertEquals(2, store.size());
+        Assert.assertEquals("a body", read(store.get("/a.css")));
+        Assert.assertNull(store.get("/b.css"));
+        Assert.assertEquals("new c body", read(store.get("/c.css")));
+        Assert.assertEquals("\"" + "a body".hashCode() + "\"", store.get("/a.css").getETag());
+        Assert.assertEquals("a body".length() + "new c body".length(), store.getUsed());
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        store = new DiskStore(directory, 0);
+        store.put("/a.css", response("a body"));
+        store.close();
+
+        // crashed while writing the next record
+        FileOutputStream index = new FileOutputStream(new File(directory, "responses.idx"), true);
+        index.write(new byte[]{'P', 0, 6, '/', 'b'});
+        index.close();
+
+        store = new DiskStore(directory, 0);
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals("a body", read(store.get("/a.css")));
+        store.put("/b.css", response("b body")); // appended after the cut off record
+
+        reopen(0);
+        Assert.assertEquals(2, store.size());
+        Assert.assertEquals("a body", read(store.get("/a.css")));
+        Assert.assertEquals("b body", read(store.get("/b.css")));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        store = new DiskStore(directory, 100);
+        for (int i = 0; i < 10; i++) {
+            store.put("/" + i + ".css", response(String.format("body of %02d", i))); // 10 bytes each
+            store.flush();
+        }
+        CachedResponse held = store.get("/0.css");
+        Assert.assertEquals(10, store.size());
+
+        // no room left, the newest ones taking up to half of it are kept
+        store.put("/10.css", response("body of 10"));
+        store.flush();
+        Assert.assertEquals(5, store.size());
+        Assert.assertEquals(50, store.getUsed());
+        Assert.assertNull(store.get("/0.css"));
+        Assert.assertEquals("body of 00", read(held)); // still readable by those holding it
+        for (int i = 6; i <= 10; i++) {
+            Assert.assertEquals(String.format("body of %02d", i), read(store.get("/" + i + ".css")));
+        }
+        Assert.assertTrue(new File(directory, "responses.dat").length() <= 100);
+
+        reopen(100);
+        Assert.assertEquals(5, store.size());
+        Assert.assertNull(store.get("/5.css"));
+        Assert.assertEquals("body of 06", read(store.get("/6.css")));
+        Assert.assertEquals("body of 10", read(store.get("/10.css")));
+    }
+
+}
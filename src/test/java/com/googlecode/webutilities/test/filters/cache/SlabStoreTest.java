@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.filters.cache;
+
+import com.googlecode.webutilities.filters.cache.SlabStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SlabStoreTest {
+
+    private static byte[] body(char c, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) c);
+        return bytes;
+    }
+
+    private static String read(SlabStore.Block block) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        block.writeTo(out);
+        return out.toString();
+    }
+
+    @Test
+    public void testStoreAndRead() throws Exception {
+        SlabStore store = new SlabStore(16, 0);
+        SlabStore.Block a = store.store("body of a".getBytes());
+        SlabStore.Block empty = store.store(new byte[0]);
+        SlabStore.Block big = store.store(body('b', 40)); // bigger than a slab, gets its own
+        Assert.assertEquals("body of a", read(a));
+        Assert.assertEquals("", read(empty));
+        Assert.assertEquals(new String(body('b', 40)), read(big));
+        Assert.assertEquals(16 + 40, store.getCapacity());
+        Assert.assertEquals(9 + 40, store.getUsed());
+    }
+
+    @Test
+    public void testFreedSlabIsDropped() throws Exception {
+        SlabStore store = new SlabStore(16, 0);
+        SlabStore.Block a = store.store(body('a', 16));
+        SlabStore.Block b = store.store(body('b', 16));
+        store.free(a);
+        Assert.assertEquals(16, store.getCapacity());
+        Assert.assertEquals(16, store.getUsed());
+        Assert.assertEquals(new String(body('a', 16)), read(a)); // still readable by those holding it
+        Assert.assertEquals(new String(body('b', 16)), read(b));
+    }
+
+    @Test
+    public void testCompactionKeepsLiveBodies() throws Exception {
+        SlabStore store = new SlabStore(16, 40);
+        SlabStore.Block a = store.store(body('a', 8));
+        SlabStore.Block b = store.store(body('b', 8));
+        SlabStore.Block c = store.store(body('c', 8));
+        store.free(a);
+        SlabStore.Block d = store.store(body('d', 8));
+        Assert.assertEquals(32, store.getCapacity());
+
+        // no room for another slab until the live half of the first one is moved out
+        SlabStore.Block e = store.store(body('e', 8));
+        Assert.assertNotNull(e);
+        Assert.assertEquals(8 + 16 + 16, store.getCapacity());
+        Assert.assertEquals(32, store.getUsed());
+        Assert.assertEquals(new String(body('a', 8)), read(a));
+        Assert.assertEquals(new String(body('b', 8)), read(b));
+        Assert.assertEquals(new String(body('c', 8)), read(c));
+        Assert.assertEquals(new String(body('d', 8)), read(d));
+        Assert.assertEquals(new String(body('e', 8)), read(e));
+
+        store.free(b); // freed from the slab it was moved into, dropped as nothing lives there anymore
+        Assert.assertEquals(16 + 16, store.getCapacity());
+        Assert.assertEquals(24, store.getUsed());
+    }
+
+    @Test
+    public void testFullStore() throws Exception {
+        SlabStore store = new SlabStore(16, 32);
+        Assert.assertNotNull(store.store(body('a', 16)));
+        Assert.assertNotNull(store.store(body('b', 16)));
+        Assert.assertNull(store.store(body('c', 1))); // nothing dead to reclaim
+        Assert.assertEquals(32, store.getUsed());
+    }
+
+}
@@ -58,6 +58,8 @@ public class JSCSSMergeServletTest {
 
     private List<Filter> filters = new ArrayList<Filter>();
 
+    private File tempDir;
+
     private static final int NO_STATUS_CODE = -99999;
 
     public JSCSSMergeServletTest() throws Exception {
@@ -78,6 +80,13 @@ public class JSCSSMergeServletTest {
         } else { //default
             webMockObjectFactory.getMockServletConfig().setInitParameter(JSCSSMergeServlet.INIT_PARAM_EXPIRES_MINUTES, expiresMinutes + ""); //one minute
         }
+        String contextParams = properties.getProperty(this.currentTestNumber + ".test.context.params");
+        if (contextParams != null && !contextParams.trim().equals("")) {
+            for (String param : contextParams.split(",")) {
+                String[] keyAndValue = param.split(":");
+                webMockObjectFactory.getMockServletContext().setInitParameter(keyAndValue[0], keyAndValue[1]);
+            }
+        }
 
     }
 
@@ -91,6 +100,14 @@ public class JSCSSMergeServletTest {
                 webMockObjectFactory.getMockServletContext().setRealPath(resource, this.getClass().getResource(resource).getPath());
             }
         }
+        String containerResources = properties.getProperty(this.currentTestNumber + ".test.resources.withoutFile");
+        if (containerResources != null && !containerResources.trim().equals("")) {
+            for (String resource : containerResources.split(",")) { //served by the container, eg. from a jar, no file at the real path
+                LOGGER.info("Setting resource without file : {}", resource);
+                webMockObjectFactory.getMockServletContext().setResourceAsStream(resource, this.getClass().getResourceAsStream(resource));
+                webMockObjectFactory.getMockServletContext().setRealPath(resource, new File(System.getProperty("java.io.tmpdir"), "no-such-dir" + resource).getPath());
+            }
+        }
     }
 
     private void setUpRequest() throws Exception {
@@ -113,7 +130,7 @@ public class JSCSSMergeServletTest {
         if (headers != null && !headers.trim().equals("")) {
             String[] headersString = headers.split("&");
             for(String header: headersString){
-                String[] nameValue = header.split("=");
+                String[] nameValue = header.split("=", 2);
                 if(nameValue.length == 2 && nameValue[1].contains("hashOf")){
                     String res = nameValue[1].replaceAll(".*hashOf\\s*\\((.*)\\).*","$1");
                     nameValue[1] = Utils.buildETagForResource(res, webMockObjectFactory.getMockServletContext());
@@ -187,12 +204,19 @@ public class JSCSSMergeServletTest {
 
         servletTestModule = new ServletTestModule(webMockObjectFactory);
 
-        this.setUpInitParams();
+        if (tempDir == null) {
+            tempDir = File.createTempFile("webutilities-servlet-test", "");
+            tempDir.delete();
+            tempDir.mkdirs(); // no precompressed bundles left by earlier runs
+        }
+        webMockObjectFactory.getMockServletContext().setAttribute("javax.servlet.context.tempdir", tempDir);
 
-        servletTestModule.setServlet(jscssMergeServlet, true);
+        this.setUpInitParams();
 
         this.setUpResources();
 
+        servletTestModule.setServlet(jscssMergeServlet, true);
+
         this.setUpRequest();
 
 
@@ -234,7 +258,12 @@ public class JSCSSMergeServletTest {
             LOGGER.debug("Running Test {}:{}", this.currentTestNumber, testCase);
             LOGGER.debug("##################################################################################################################");
 
-            servletTestModule.doGet();
+            boolean head = "HEAD".equals(properties.getProperty(this.currentTestNumber + ".test.request.method"));
+            if (head) {
+                servletTestModule.doHead();
+            } else {
+                servletTestModule.doGet();
+            }
 
             MockHttpServletResponse response = webMockObjectFactory.getMockResponse();
 
@@ -250,7 +279,10 @@ public class JSCSSMergeServletTest {
                 Assert.assertEquals(value, response.getHeader(name));
             }
 
-            if(actualStatusCode != HttpServletResponse.SC_NOT_MODIFIED){
+            if(head){
+                Assert.assertTrue(this.hasCorrectDateHeaders());
+                Assert.assertEquals("", servletTestModule.getOutput());
+            }else if(actualStatusCode != HttpServletResponse.SC_NOT_MODIFIED){
                 Assert.assertTrue(this.hasCorrectDateHeaders());
                 String actualOutput = servletTestModule.getOutput();
                 //!TODO for now hash is ignored bcoz it will differ based last modification time of the resource
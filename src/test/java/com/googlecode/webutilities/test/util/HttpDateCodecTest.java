@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.util;
+
+import com.googlecode.webutilities.util.HttpDateCodec;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpDateCodecTest {
+
+    private static final long SUN_06_NOV_1994 = 784111777000L; // Sun, 06 Nov 1994 08:49:37 GMT
+
+    @Test
+    public void testParseImfFixdate() {
+        Assert.assertEquals(SUN_06_NOV_1994, HttpDateCodec.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+        Assert.assertEquals(SUN_06_NOV_1994, HttpDateCodec.parse(" Sun, 06 Nov 1994 08:49:37 GMT "));
+        Assert.assertEquals(SUN_06_NOV_1994, HttpDateCodec.parse("Sun, 6 Nov 1994 08:49:37 GMT"));
+        Assert.assertEquals(SUN_06_NOV_1994, HttpDateCodec.parse("sun, 06 nov 1994 08:49:37 gmt"));
+        Assert.assertEquals(0, HttpDateCodec.parse("Thu, 01 Jan 1970 00:00:00 GMT"));
+        Assert.assertEquals(951782400000L, HttpDateCodec.parse("Tue, 29 Feb 2000 00:00:00 GMT"));
+    }
+
+    @Test
+    public void testParseRfc850() {
+        Assert.assertEquals(SUN_06_NOV_1994, HttpDateCodec.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+        Assert.assertEquals(1104537600000L, HttpDateCodec.parse("Saturday, 01-Jan-05 00:00:00 GMT"));
+    }
+
+    @Test
+    public void testParseAsctime() {
+        Assert.assertEquals(SUN_06_NOV_1994, HttpDateCodec.parse("Sun Nov  6 08:49:37 1994"));
+        Assert.assertEquals(SUN_06_NOV_1994 + 4 * 24 * 60 * 60 * 1000L, HttpDateCodec.parse("Thu Nov 10 08:49:37 1994"));
+    }
+
+    @Test
+    public void testParseInvalid() {
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse(null));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse(""));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("yesterday"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sun, 06 Nov 1994 08:49:37 PST"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sun, 06 Nov 1994 08:49:37"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sun, 06 Foo 1994 08:49:37 GMT"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sun, 32 Nov 1994 08:49:37 GMT"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sun, 06 Nov 1994 24:49:37 GMT"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sun, 06 Nov 94 08:49:37 GMT"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sunday, 06-Nov-1994 08:49:37 GMT"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sun Nov 6 08:49:37 1994"));
+        Assert.assertEquals(HttpDateCodec.INVALID, HttpDateCodec.parse("Sun Nov  6 08:49 1994"));
+    }
+
+    @Test
+    public void testFormat() {
+        Assert.assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDateCodec.format(SUN_06_NOV_1994));
+        Assert.assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDateCodec.format(SUN_06_NOV_1994 + 999));
+        Assert.assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDateCodec.format(0));
+        Assert.assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", HttpDateCodec.format(-1));
+        Assert.assertEquals("Tue, 29 Feb 2000 00:00:00 GMT", HttpDateCodec.format(951782400000L));
+        for (long time = 0; time < 4102444800000L; time += 86399999L * 7) { // every week and a bit until 2100
+            Assert.assertEquals(time - time % 1000, HttpDateCodec.parse(HttpDateCodec.format(time)));
+        }
+    }
+
+    @Test
+    public void testFormatFromNow() {
+        long offset = 7 * 24 * 60 * 60 * 1000L;
+        long before = System.currentTimeMillis() / 1000 * 1000;
+        String value = HttpDateCodec.formatFromNow(offset);
+        long after = System.currentTimeMillis() / 1000 * 1000;
+        long parsed = HttpDateCodec.parse(value);
+        Assert.assertTrue(parsed >= before + offset && parsed <= after + offset);
+        parsed = HttpDateCodec.parse(HttpDateCodec.formatNow());
+        Assert.assertTrue(parsed >= before && parsed <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void testFormatFromNowKeepsOtherDates() {
+        String lastModified = HttpDateCodec.format(SUN_06_NOV_1994);
+        HttpDateCodec.formatFromNow(60 * 1000L);
+        HttpDateCodec.formatNow();
+        Assert.assertSame(lastModified, HttpDateCodec.format(SUN_06_NOV_1994));
+    }
+
+}
@@ -0,0 +1 @@
+var Person
\ No newline at end of file